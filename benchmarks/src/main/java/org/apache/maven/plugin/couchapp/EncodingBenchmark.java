@@ -0,0 +1,105 @@
+package org.apache.maven.plugin.couchapp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.output.NullWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The per attachment work of the package goal: encoding, hashing and content type resolution
+ *
+ * The single pass AttachmentEncoder is measured next to the separate MD5 and base64 helpers it replaced, and the
+ * ContentTypes table next to Files.probeContentType.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EncodingBenchmark {
+
+	private static final String[] NAMES = { "index.html", "app.js", "style.css", "data.json", "logo.svg", "logo.png", "font.woff", "icon.ico", "archive.bin" };
+
+	@Param({ "1024", "65536", "16777216" })
+	public int size;
+
+	private File folder;
+	private File file;
+	private File[] names;
+	private byte[] bytes;
+	private AttachmentEncoder encoder;
+	private final ContentTypes types = new ContentTypes();
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		folder = Files.createTempDirectory("couchapp-benchmark").toFile();
+		bytes = new byte[size];
+		new Random(size).nextBytes(bytes);
+		file = new File(folder, "attachment.bin");
+		FileUtils.writeByteArrayToFile(file, bytes);
+		names = new File[NAMES.length];
+		for (int i = 0; i < NAMES.length; i++) {
+			names[i] = new File(folder, NAMES[i]);
+			FileUtils.writeByteArrayToFile(names[i], new byte[16]);
+		}
+		encoder = new AttachmentEncoder();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		FileUtils.deleteQuietly(folder);
+	}
+
+	@Benchmark
+	public String encode() throws IOException {
+		return encoder.encode(file, new NullWriter());
+	}
+
+	@Benchmark
+	public String md5() throws IOException {
+		return CouchAppMojo.md5(FileUtils.readFileToByteArray(file));
+	}
+
+	@Benchmark
+	public String base64() throws IOException {
+		return CouchAppMojo.base64encode(FileUtils.readFileToByteArray(file));
+	}
+
+	@Benchmark
+	public int probeContentType() throws IOException {
+		int result = 0;
+		for (File name : names) {
+			final String type = Files.probeContentType(name.toPath());
+			if (type != null) result += type.length();
+		}
+		return result;
+	}
+
+	@Benchmark
+	public int contentTypes() {
+		int result = 0;
+		for (File name : names) {
+			result += types.get(name).length();
+		}
+		return result;
+	}
+
+}
@@ -0,0 +1,122 @@
+package org.apache.maven.plugin.couchapp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The package goal end to end, on synthetic couchapps of different shapes
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PackageBenchmark {
+
+	@Param({ "VIEWS", "ATTACHMENTS", "BINARIES" })
+	public SyntheticCouchApp.Shape shape;
+
+	@Param({ "1", "4" })
+	public int parallelism;
+
+	private File root;
+	private File source;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException, MojoExecutionException, MojoFailureException {
+		root = Files.createTempDirectory("couchapp-benchmark").toFile();
+		source = SyntheticCouchApp.create(root, shape);
+		// Leaves a warm cache behind for packageUpToDate
+		createMojo("cached", true).execute();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		FileUtils.deleteQuietly(root);
+	}
+
+	/*
+	 * Starts from an empty target, so nothing a previous invocation left behind gets reused.
+	 */
+	@Benchmark
+	public File packageFull(final EmptyTarget target) throws MojoExecutionException, MojoFailureException {
+		createMojo("full", false).execute();
+		return new File(root, "full/couchapp.json");
+	}
+
+	@Benchmark
+	public File packageUpToDate() throws MojoExecutionException, MojoFailureException {
+		createMojo("cached", true).execute();
+		return new File(root, "cached/couchapp.json");
+	}
+
+	private CouchAppPackageMojo createMojo(final String target, final boolean cache) {
+		final CouchAppPackageMojo result = new CouchAppPackageMojo();
+		result.setLog(new QuietLog());
+		result.setSource(source.getPath());
+		result.setTarget(new File(root, target).getPath());
+		result.setCache(cache);
+		result.setParallelism(parallelism);
+		return result;
+	}
+
+	@State(Scope.Thread)
+	public static class EmptyTarget {
+
+		@Setup(Level.Invocation)
+		public void setup(final PackageBenchmark benchmark) {
+			FileUtils.deleteQuietly(new File(benchmark.root, "full"));
+		}
+
+	}
+
+	/*
+	 * Keeps the per run info lines out of the measurements.
+	 */
+	private static class QuietLog extends SystemStreamLog {
+
+		@Override
+		public boolean isInfoEnabled() {
+			return false;
+		}
+
+		@Override
+		public void info(final CharSequence content) {
+		}
+
+		@Override
+		public void info(final CharSequence content, final Throwable error) {
+		}
+
+		@Override
+		public void info(final Throwable error) {
+		}
+
+		@Override
+		public void warn(final CharSequence content) {
+		}
+
+	}
+
+}
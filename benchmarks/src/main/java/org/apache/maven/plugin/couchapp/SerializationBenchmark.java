@@ -0,0 +1,66 @@
+package org.apache.maven.plugin.couchapp;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.output.NullWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.gson.JsonObject;
+
+/**
+ * JSON serialization of the design document sections, streamed through the digesting DesignDocumentWriter
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SerializationBenchmark {
+
+	@Param({ "10", "1000" })
+	public int views;
+
+	private JsonObject document;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		document = new JsonObject();
+		for (int i = 0; i < views; i++) {
+			final JsonObject view = new JsonObject();
+			view.addProperty("map", "function(doc) {\n\tif (doc.type === 'type" + i + "') {\n\t\temit([doc.created, doc._id], doc.value" + i + ");\n\t}\n}\n");
+			view.addProperty("reduce", "_sum");
+			document.add("view" + i, view);
+		}
+	}
+
+	@Benchmark
+	public String writeJson() throws IOException {
+		final DesignDocumentWriter writer = new DesignDocumentWriter(new NullWriter());
+		writer.beginObject();
+		writer.name("views");
+		CouchAppMojo.writeJson(document, writer);
+		writer.endObject();
+		writer.flush();
+		return writer.getDigest();
+	}
+
+	@Benchmark
+	public String toJsonString() {
+		return document.toString();
+	}
+
+}
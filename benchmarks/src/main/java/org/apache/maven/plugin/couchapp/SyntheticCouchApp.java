@@ -0,0 +1,84 @@
+package org.apache.maven.plugin.couchapp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Generates couchapp source trees of a given shape, the same for every run
+ *
+ */
+public final class SyntheticCouchApp {
+
+	public enum Shape {
+
+		/** Many small views, lists and shows, hardly any attachments */
+		VIEWS(2000, 200, 4, 2048),
+
+		/** Thousands of small attachments, as in a bundled web application */
+		ATTACHMENTS(20, 5, 5000, 8192),
+
+		/** A few very large binaries */
+		BINARIES(20, 5, 3, 24 * 1024 * 1024);
+
+		private final int views;
+		private final int functions;
+		private final int attachments;
+		private final int attachmentSize;
+
+		Shape(final int views, final int functions, final int attachments, final int attachmentSize) {
+			this.views = views;
+			this.functions = functions;
+			this.attachments = attachments;
+			this.attachmentSize = attachmentSize;
+		}
+
+	}
+
+	private static final String[] EXTENSIONS = { "html", "js", "css", "json", "svg", "png", "woff", "ico" };
+
+	private SyntheticCouchApp() {
+	}
+
+	/**
+	 * @return The source folder, to be passed as source to the package goal
+	 */
+	public static File create(final File root, final Shape shape) throws IOException {
+		final Random random = new Random(shape.ordinal());
+		final File source = new File(root, shape.name().toLowerCase());
+		FileUtils.deleteQuietly(source);
+		write(new File(source, "_id"), "_design/" + shape.name().toLowerCase());
+		write(new File(source, "language"), "javascript");
+		write(new File(source, "couchapp.json"), "{\"name\":\"" + shape.name().toLowerCase() + "\",\"description\":\"Synthetic benchmark application\"}");
+		write(new File(source, "rewrites.json"), "[{\"from\":\"\",\"to\":\"index.html\"},{\"from\":\"/*\",\"to\":\"*\"}]");
+		write(new File(source, "README.txt"), "Generated for benchmarking the packaging pipeline.\n");
+		for (int i = 0; i < shape.views; i++) {
+			final File view = new File(source, "views/view" + i);
+			write(new File(view, "map.js"), "function(doc) {\n\tif (doc.type === 'type" + i + "') {\n\t\temit([doc.created, doc._id], doc.value" + i + ");\n\t}\n}\n");
+			if (i % 2 == 0) write(new File(view, "reduce.js"), "_sum");
+		}
+		for (int i = 0; i < shape.functions; i++) {
+			write(new File(source, "lists/list" + i + ".js"), "function(head, req) {\n\tstart({'headers': {'Content-Type': 'application/json'}});\n\tvar row;\n\twhile (row = getRow()) {\n\t\tsend(toJSON(row.value) + '\\n');\n\t}\n}\n");
+			write(new File(source, "shows/show" + i + ".js"), "function(doc, req) {\n\treturn {'body': '<h1>' + doc.title + '</h1>', 'headers': {'Content-Type': 'text/html'}};\n}\n");
+		}
+		final byte[] bytes = new byte[shape.attachmentSize];
+		for (int i = 0; i < shape.attachments; i++) {
+			final String extension = EXTENSIONS[i % EXTENSIONS.length];
+			final int size = shape.attachments > 100 ? 1 + random.nextInt(shape.attachmentSize) : shape.attachmentSize;
+			random.nextBytes(bytes);
+			final File file = new File(source, "_attachments/dir" + (i / 100) + "/file" + i + "." + extension);
+			file.getParentFile().mkdirs();
+			FileUtils.writeByteArrayToFile(file, size == bytes.length ? bytes : Arrays.copyOf(bytes, size));
+		}
+		return source;
+	}
+
+	private static void write(final File file, final String content) throws IOException {
+		FileUtils.writeStringToFile(file, content, StandardCharsets.UTF_8);
+	}
+
+}
@@ -0,0 +1,69 @@
+package org.apache.maven.plugin.couchapp;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Gzips attachments at package time, so they can be uploaded pre-encoded
+ *
+ * Compressed files mirror the attachments folder, and carry the modification time of their source, which is how an
+ * unchanged attachment skips compression on the next build.
+ */
+public class AttachmentCompressor {
+
+	public static final String SUFFIX = ".gz";
+
+	private final File folder;
+	private final int level;
+
+	/**
+	 * @param folder Where the compressed attachments are kept
+	 * @param level The deflate level, from 1 to 9, anything else uses the default
+	 */
+	public AttachmentCompressor(final File folder, final int level) {
+		this.folder = folder;
+		this.level = level >= Deflater.BEST_SPEED && level <= Deflater.BEST_COMPRESSION ? level : Deflater.DEFAULT_COMPRESSION;
+	}
+
+	/**
+	 * @param name The attachment name, relative to the attachments folder
+	 */
+	public File getFile(final String name) {
+		return new File(folder, name + SUFFIX);
+	}
+
+	/**
+	 * @return The compressed size in bytes, or -1 when gzip does not make the attachment any smaller
+	 */
+	public long compress(final File file, final String name) throws IOException {
+		final File result = getFile(name);
+		if (result.isFile() && result.lastModified() == file.lastModified()) {
+			return result.length() < file.length() ? result.length() : -1;
+		}
+		result.getParentFile().mkdirs();
+		final File temp = new File(result.getPath() + ".tmp");
+		try (InputStream in = new FileInputStream(file);
+				OutputStream out = new GZIPOutputStream(new FileOutputStream(temp), 64 * 1024) {
+					{
+						def.setLevel(level);
+					}
+				}) {
+			IOUtils.copy(in, out, 64 * 1024);
+		}
+		if (result.exists() && !result.delete() || !temp.renameTo(result)) {
+			temp.delete();
+			throw new IOException("Unable to store compressed attachment " + result);
+		}
+		result.setLastModified(file.lastModified());
+		return result.length() < file.length() ? result.length() : -1;
+	}
+
+}
@@ -0,0 +1,86 @@
+package org.apache.maven.plugin.couchapp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import javax.xml.bind.DatatypeConverter;
+
+/**
+ * Reads an attachment once, producing both its base64 encoding and its MD5 signature
+ *
+ * Instances reuse their buffers and are therefore not thread-safe.
+ */
+public class AttachmentEncoder {
+
+	private static final char[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+	/*
+	 * A multiple of 3, so every full buffer encodes without padding.
+	 */
+	private static final int BUFFER_SIZE = 3 * 16 * 1024;
+
+	private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+	private final char[] chars = new char[BUFFER_SIZE / 3 * 4];
+	private final MessageDigest digest;
+
+	public AttachmentEncoder() throws IOException {
+		try {
+			digest = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Writes the base64 encoded contents of a file to the given writer
+	 *
+	 * @return The lowercase hexadecimal MD5 of the file contents
+	 */
+	public String encode(final File file, final Writer out) throws IOException {
+		digest.reset();
+		buffer.clear();
+		final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			while (channel.read(buffer) != -1) {
+				if (!buffer.hasRemaining()) {
+					flush(out);
+				}
+			}
+			flush(out);
+		} finally {
+			channel.close();
+		}
+		return DatatypeConverter.printHexBinary(digest.digest()).toLowerCase();
+	}
+
+	private void flush(final Writer out) throws IOException {
+		final byte[] bytes = buffer.array();
+		final int length = buffer.position();
+		digest.update(bytes, 0, length);
+		int count = 0;
+		int i = 0;
+		for (; i + 2 < length; i += 3) {
+			final int bits = (bytes[i] & 0xff) << 16 | (bytes[i + 1] & 0xff) << 8 | (bytes[i + 2] & 0xff);
+			chars[count++] = ALPHABET[bits >>> 18 & 0x3f];
+			chars[count++] = ALPHABET[bits >>> 12 & 0x3f];
+			chars[count++] = ALPHABET[bits >>> 6 & 0x3f];
+			chars[count++] = ALPHABET[bits & 0x3f];
+		}
+		if (i < length) {
+			final int bits = (bytes[i] & 0xff) << 16 | (i + 1 < length ? (bytes[i + 1] & 0xff) << 8 : 0);
+			chars[count++] = ALPHABET[bits >>> 18 & 0x3f];
+			chars[count++] = ALPHABET[bits >>> 12 & 0x3f];
+			chars[count++] = i + 1 < length ? ALPHABET[bits >>> 6 & 0x3f] : '=';
+			chars[count++] = '=';
+		}
+		out.write(chars, 0, count);
+		buffer.clear();
+	}
+
+}
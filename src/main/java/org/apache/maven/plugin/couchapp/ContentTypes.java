@@ -0,0 +1,120 @@
+package org.apache.maven.plugin.couchapp;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+/**
+ * Resolves attachment content types from file extensions
+ *
+ * Unlike Files.probeContentType, the result does not depend on the machine running the build. Unknown extensions
+ * resolve to application/octet-stream. The built-in table can be extended or overridden per extension.
+ */
+public class ContentTypes {
+
+	public static final String DEFAULT = "application/octet-stream";
+
+	private static final Map<String, String> TYPES = new HashMap<>();
+
+	static {
+		TYPES.put("html", "text/html");
+		TYPES.put("htm", "text/html");
+		TYPES.put("css", "text/css");
+		TYPES.put("js", "application/javascript");
+		TYPES.put("mjs", "application/javascript");
+		TYPES.put("json", "application/json");
+		TYPES.put("map", "application/json");
+		TYPES.put("webmanifest", "application/manifest+json");
+		TYPES.put("xml", "application/xml");
+		TYPES.put("xhtml", "application/xhtml+xml");
+		TYPES.put("txt", "text/plain");
+		TYPES.put("md", "text/markdown");
+		TYPES.put("csv", "text/csv");
+		TYPES.put("tsv", "text/tab-separated-values");
+		TYPES.put("ics", "text/calendar");
+		TYPES.put("appcache", "text/cache-manifest");
+		TYPES.put("svg", "image/svg+xml");
+		TYPES.put("ico", "image/x-icon");
+		TYPES.put("bmp", "image/bmp");
+		TYPES.put("png", "image/png");
+		TYPES.put("jpg", "image/jpeg");
+		TYPES.put("jpeg", "image/jpeg");
+		TYPES.put("gif", "image/gif");
+		TYPES.put("webp", "image/webp");
+		TYPES.put("avif", "image/avif");
+		TYPES.put("woff", "font/woff");
+		TYPES.put("woff2", "font/woff2");
+		TYPES.put("ttf", "font/ttf");
+		TYPES.put("otf", "font/otf");
+		TYPES.put("eot", "application/vnd.ms-fontobject");
+		TYPES.put("wasm", "application/wasm");
+		TYPES.put("pdf", "application/pdf");
+		TYPES.put("zip", "application/zip");
+		TYPES.put("gz", "application/gzip");
+		TYPES.put("mp3", "audio/mpeg");
+		TYPES.put("ogg", "audio/ogg");
+		TYPES.put("wav", "audio/wav");
+		TYPES.put("mp4", "video/mp4");
+		TYPES.put("webm", "video/webm");
+	}
+
+	private final Map<String, String> types = new HashMap<>(TYPES);
+
+	public ContentTypes() {
+	}
+
+	/**
+	 * @param overrides Content types keyed on extension, with or without the leading dot, or null
+	 */
+	public ContentTypes(final Map<String, String> overrides) {
+		if (overrides != null) {
+			for (Entry<String, String> entry : overrides.entrySet()) {
+				final String extension = entry.getKey().trim().toLowerCase(Locale.ROOT);
+				types.put(extension.startsWith(".") ? extension.substring(1) : extension, entry.getValue().trim());
+			}
+		}
+	}
+
+	public String get(final File file) {
+		return get(file.getName());
+	}
+
+	public String get(final String name) {
+		final int dot = name.lastIndexOf('.');
+		if (dot < 0) return DEFAULT;
+		final String result = types.get(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+		return result == null ? DEFAULT : result;
+	}
+
+	/**
+	 * Text based types shrink with gzip, images, fonts, media and archives are already compressed
+	 */
+	public static boolean isCompressible(final String contentType) {
+		final int parameters = contentType.indexOf(';');
+		final String type = (parameters < 0 ? contentType : contentType.substring(0, parameters)).trim().toLowerCase(Locale.ROOT);
+		return type.startsWith("text/")
+				|| type.endsWith("+json")
+				|| type.endsWith("+xml")
+				|| type.equals("application/javascript")
+				|| type.equals("application/json")
+				|| type.equals("application/xml")
+				|| type.equals("application/wasm")
+				|| type.equals("application/vnd.ms-fontobject")
+				|| type.equals("image/x-icon")
+				|| type.equals("image/bmp")
+				|| type.equals("font/ttf")
+				|| type.equals("font/otf");
+	}
+
+	/**
+	 * @return The configuration, for cache invalidation
+	 */
+	@Override
+	public String toString() {
+		return new TreeMap<>(types).toString();
+	}
+
+}
@@ -2,13 +2,32 @@ package org.apache.maven.plugin.couchapp;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
 
+import org.apache.http.HttpEntity;
+import org.apache.http.NoHttpResponseException;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
 import org.apache.maven.plugins.annotations.LifecyclePhase;
 import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
 import org.apache.maven.plugins.annotations.ResolutionScope;
 
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 
 /**
@@ -23,6 +42,105 @@ import com.google.gson.JsonObject;
 		requiresDependencyResolution = ResolutionScope.RUNTIME)
 public class CouchAppDeployMojo extends CouchAppMojo {
 
+	private static final String STAGING_SUFFIX = "-staging";
+
+	/*
+	 * Serialized JSON parts of multipart bodies, keyed on the attachments sent as stubs, so targets in the same state
+	 * share a single copy.
+	 */
+	private final Map<Set<String>, byte[]> bodies = new ConcurrentHashMap<>();
+
+	/**
+	 * Upload attachments as raw multipart/related parts, instead of inlined base64
+	 */
+	@Parameter(property = "deploy.multipart", defaultValue = "false")
+	protected boolean multipart;
+
+	/**
+	 * Only upload attachments whose signature differs from the deployed design document
+	 */
+	@Parameter(property = "deploy.diff", defaultValue = "true")
+	protected boolean diff = true;
+
+	/**
+	 * Deploy even when the deployed design document has the same digest
+	 */
+	@Parameter(property = "deploy.force", defaultValue = "false")
+	protected boolean force;
+
+	/**
+	 * Comma separated .couchapprc environments to deploy to
+	 */
+	@Parameter(property = "deploy.environments", defaultValue = "")
+	protected String environments;
+
+	/**
+	 * Additional database URLs to deploy to
+	 */
+	@Parameter(property = "deploy.targets")
+	protected List<String> targets;
+
+	/**
+	 * Maximum number of targets deployed to at the same time
+	 */
+	@Parameter(property = "deploy.concurrency", defaultValue = "4")
+	protected int concurrency = 4;
+
+	/**
+	 * Number of retries after a conflict, server error or timeout
+	 */
+	@Parameter(property = "deploy.retries", defaultValue = "3")
+	protected int retries = 3;
+
+	/**
+	 * Initial delay in milliseconds before retrying, doubled on every further attempt
+	 */
+	@Parameter(property = "deploy.retryDelay", defaultValue = "500")
+	protected long retryDelay = 500;
+
+	/**
+	 * Maximum delay in milliseconds between retries
+	 */
+	@Parameter(property = "deploy.retryMaxDelay", defaultValue = "10000")
+	protected long retryMaxDelay = 10000;
+
+	/**
+	 * Build the view index after deploying, so the first query does not have to
+	 */
+	@Parameter(property = "deploy.warmup", defaultValue = "false")
+	protected boolean warmup;
+
+	/**
+	 * Maximum number of milliseconds to wait for the view index to be built
+	 */
+	@Parameter(property = "deploy.warmupTimeout", defaultValue = "600000")
+	protected long warmupTimeout = 600000;
+
+	/**
+	 * Milliseconds between progress reports while the view index is built
+	 */
+	@Parameter(property = "deploy.warmupInterval", defaultValue = "5000")
+	protected long warmupInterval = 5000;
+
+	/**
+	 * Deploy design documents with changed views under a staging id first, and only replace the live one once the
+	 * new view index is built
+	 */
+	@Parameter(property = "deploy.staged", defaultValue = "false")
+	protected boolean staged;
+
+	/**
+	 * Number of seed documents per _bulk_docs request
+	 */
+	@Parameter(property = "deploy.documentsBatchSize", defaultValue = "500")
+	protected int documentsBatchSize = 500;
+
+	/**
+	 * Maximum number of seed document batches in flight per target
+	 */
+	@Parameter(property = "deploy.documentsConcurrency", defaultValue = "4")
+	protected int documentsConcurrency = 4;
+
 	@Override
 	public void execute() throws MojoExecutionException, MojoFailureException {
 		try {
@@ -33,8 +151,10 @@ public class CouchAppDeployMojo extends CouchAppMojo {
 				getLog().info("Skipping.");
 				return;
 			}
+			if (executeSources("deploy")) return;
 
 			initialize();
+			metrics.reset();
 
 			final File sourceFolder = checkSource();
 			if (sourceFolder == null) return;
@@ -42,57 +162,560 @@ public class CouchAppDeployMojo extends CouchAppMojo {
 
 			final File targetFolder = checkTarget();
 
-			final JsonObject couchapp = readFileAsJsonObject(new File(targetFolder.toString(), "couchapp.json"));
+			final File designDocument = new File(targetFolder.toString(), "couchapp.json");
 
-			if (!databaseExists()) {
-				createDatabase();
-			}
+			// The package is read once, and shared by all targets
+			final long read = System.nanoTime();
+			final PackagedDesignDocument packaged = PackagedDesignDocument.read(designDocument);
+			final DeployHistory history = new DeployHistory(new File(targetFolder.toString(), "couchapp-deploy.json"));
+			final File documents = new File(targetFolder.toString(), "couchapp-docs.json");
+			metrics.time("read", read);
 
-			final JsonObject original = getDesignDocument(couchapp.get("_id").getAsString());
-			if (original != null) {
-				couchapp.addProperty("_rev", getStringFromJson(original, "_rev"));
+			final List<CouchDbClient> clients = getClients(sourceFolder);
+			metrics.count("targets", clients.size());
+			if (clients.size() == 1) {
+				try {
+					deploy(clients.get(0), packaged, sourceFolder, history, documents);
+				} finally {
+					reportMetrics("deploy", targetFolder);
+				}
+				return;
 			}
 
-			deployDesignDocument(couchapp);
+			final ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(concurrency, clients.size())));
+			final List<Future<String>> results = new ArrayList<>();
+			try {
+				for (CouchDbClient client : clients) {
+					results.add(executor.submit(() -> deploy(client, packaged, sourceFolder, history, documents)));
+				}
+				final List<String> summary = new ArrayList<>();
+				int failures = 0;
+				for (int i = 0; i < clients.size(); i++) {
+					try {
+						summary.add(clients.get(i).getCouchDb() + ": " + results.get(i).get());
+					} catch (ExecutionException e) {
+						failures++;
+						summary.add(clients.get(i).getCouchDb() + ": FAILED, " + e.getCause().getMessage());
+					}
+				}
+				getLog().info("Deploy summary:");
+				for (String line : summary) {
+					getLog().info("  " + line);
+				}
+				metrics.count("failed", failures);
+				reportMetrics("deploy", targetFolder);
+				if (failures > 0) {
+					throw new MojoFailureException("Deploy failed for " + failures + " of " + clients.size() + " targets");
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new MojoExecutionException("Deploy interrupted.", e);
+			} finally {
+				executor.shutdownNow();
+			}
 
 		} catch (IOException e) {
 			throw new MojoExecutionException("Something went wrong.", e);
 		}
 	}
 
-	private void createDatabase() throws IOException {
-		final CouchDbResponse response = getClient().createDatabase();
-		if (response.getStatus() != 201) {
-			throw new IOException("Unable to create database");
+	@Override
+	protected void debug() throws MojoExecutionException, MojoFailureException {
+		super.debug();
+		if (debug) {
+			getLog().debug("deploy.multipart: " + multipart);
+			getLog().debug("deploy.diff: " + diff);
+			getLog().debug("deploy.force: " + force);
+			getLog().debug("deploy.environments: " + environments);
+			getLog().debug("deploy.targets: " + targets);
+			getLog().debug("deploy.concurrency: " + concurrency);
+			getLog().debug("deploy.retries: " + retries);
+			getLog().debug("deploy.retryDelay: " + retryDelay);
+			getLog().debug("deploy.retryMaxDelay: " + retryMaxDelay);
+			getLog().debug("deploy.warmup: " + warmup);
+			getLog().debug("deploy.warmupTimeout: " + warmupTimeout);
+			getLog().debug("deploy.warmupInterval: " + warmupInterval);
+			getLog().debug("deploy.staged: " + staged);
+			getLog().debug("deploy.documentsBatchSize: " + documentsBatchSize);
+			getLog().debug("deploy.documentsConcurrency: " + documentsConcurrency);
 		}
 	}
 
-	private boolean databaseExists() throws IOException {
-		final CouchDbResponse response = getClient().checkForDatabase();
-		switch (response.getStatus()) {
-		case 200:
-			return true;
-		case 404:
-			return false;
-		default:
-			throw new IOException("An error occurred while checking for your database!");
+	@Override
+	protected void configure(final CouchAppMojo mojo) {
+		super.configure(mojo);
+		if (mojo instanceof CouchAppDeployMojo) {
+			final CouchAppDeployMojo deployer = (CouchAppDeployMojo) mojo;
+			deployer.multipart = multipart;
+			deployer.diff = diff;
+			deployer.force = force;
+			deployer.environments = environments;
+			deployer.targets = targets;
+			deployer.concurrency = concurrency;
+			deployer.retries = retries;
+			deployer.retryDelay = retryDelay;
+			deployer.retryMaxDelay = retryMaxDelay;
+			deployer.warmup = warmup;
+			deployer.warmupTimeout = warmupTimeout;
+			deployer.warmupInterval = warmupInterval;
+			deployer.staged = staged;
+			deployer.documentsBatchSize = documentsBatchSize;
+			deployer.documentsConcurrency = documentsConcurrency;
+		}
+	}
+
+	protected void setConcurrency(final int concurrency) {
+		this.concurrency = concurrency;
+	}
+
+	protected void setDiff(final boolean diff) {
+		this.diff = diff;
+	}
+
+	protected void setDocumentsBatchSize(final int documentsBatchSize) {
+		this.documentsBatchSize = documentsBatchSize;
+	}
+
+	protected void setDocumentsConcurrency(final int documentsConcurrency) {
+		this.documentsConcurrency = documentsConcurrency;
+	}
+
+	protected void setEnvironments(final String environments) {
+		this.environments = environments;
+	}
+
+	protected void setForce(final boolean force) {
+		this.force = force;
+	}
+
+	protected void setMultipart(final boolean multipart) {
+		this.multipart = multipart;
+	}
+
+	protected void setRetries(final int retries) {
+		this.retries = retries;
+	}
+
+	protected void setRetryDelay(final long retryDelay) {
+		this.retryDelay = retryDelay;
+	}
+
+	protected void setStaged(final boolean staged) {
+		this.staged = staged;
+	}
+
+	protected void setTargets(final List<String> targets) {
+		this.targets = targets;
+	}
+
+	protected void setWarmup(final boolean warmup) {
+		this.warmup = warmup;
+	}
+
+	protected void setWarmupInterval(final long warmupInterval) {
+		this.warmupInterval = warmupInterval;
+	}
+
+	protected void setWarmupTimeout(final long warmupTimeout) {
+		this.warmupTimeout = warmupTimeout;
+	}
+
+	/*
+	 * Without environments or targets, the single database configured through .couchapprc or couchdb.* is used.
+	 */
+	private List<CouchDbClient> getClients(final File sourceFolder) throws IOException {
+		final List<CouchDbClient> result = new ArrayList<>();
+		if (!isEmpty(environments)) {
+			final File couchappResource = new File(sourceFolder.toString(), ".couchapprc");
+			if (!couchappResource.isFile()) {
+				throw new IOException("Environments require a .couchapprc in " + sourceFolder);
+			}
+			final JsonObject resource = readFileAsJsonObject(couchappResource);
+			for (String environment : environments.split(",")) {
+				try {
+					result.add(createClient(getStringFromJson(resource, "env", environment.trim(), "db")));
+				} catch (RuntimeException e) {
+					throw new IOException("Environment " + environment.trim() + " not found in .couchapprc", e);
+				}
+			}
+		}
+		if (targets != null) {
+			for (String url : targets) {
+				if (!isEmpty(url)) result.add(createClient(url.trim()));
+			}
+		}
+		if (result.isEmpty()) {
+			result.add(getClient());
+		}
+		return result;
+	}
+
+	/*
+	 * Seed documents and the warm-up follow once the design document is in place, so their failures are not retried
+	 * as a deploy. The documents go first, so the warm-up indexes them as well.
+	 */
+	private String deploy(
+			final CouchDbClient client,
+			final PackagedDesignDocument packaged,
+			final File sourceFolder,
+			final DeployHistory history,
+			final File documents) throws IOException {
+		return deployWithRetries(client, packaged, sourceFolder, history) + loadDocuments(client, documents, history) + warmup(client, packaged);
+	}
+
+	/*
+	 * Every attempt starts over from the revision lookup, so a conflict picks up the revision that won, and the
+	 * attachments it holds.
+	 */
+	private String deployWithRetries(
+			final CouchDbClient client,
+			final PackagedDesignDocument packaged,
+			final File sourceFolder,
+			final DeployHistory history) throws IOException {
+		final long begin = System.currentTimeMillis();
+		for (int attempt = 1; ; attempt++) {
+			final long start = System.currentTimeMillis();
+			if (attempt > 1) metrics.count("retries", 1);
+			final long deploy = System.nanoTime();
+			try {
+				final String result = deployOnce(client, packaged, sourceFolder, history);
+				metrics.time("deploy", deploy);
+				return result + " in " + (System.currentTimeMillis() - begin) + " ms" + (attempt > 1 ? ", " + attempt + " attempts" : "");
+			} catch (IOException e) {
+				metrics.time("deploy", deploy);
+				final long elapsed = System.currentTimeMillis() - start;
+				if (attempt > retries || !isRetryable(e)) {
+					throw e;
+				}
+				final long delay = getRetryDelay(attempt);
+				getLog().warn(client.getCouchDb() + ": Attempt " + attempt + " failed after " + elapsed + " ms, " + e.getMessage() + ", retrying in " + delay + " ms");
+				try {
+					Thread.sleep(delay);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Deploy interrupted");
+				}
+			}
 		}
 	}
 
-	private void deployDesignDocument(final JsonObject designDocument) throws IOException {
-		final CouchDbResponse response = getClient().updateDesignDocument(designDocument.get("_id").getAsString(), designDocument.toString());
-		if (response.getStatus() != 201) {
-			throw new IOException("Unable to save design document");
+	/*
+	 * A target deployed before is checked with a HEAD request, and the history tells what its revision holds. Any
+	 * other target costs a single GET, which also reveals a missing database. Either way, the upload follows directly.
+	 */
+	private String deployOnce(
+			final CouchDbClient client,
+			final PackagedDesignDocument packaged,
+			final File sourceFolder,
+			final DeployHistory history) throws IOException {
+		final String designDocumentId = packaged.getId();
+		final JsonObject local = packaged.getDocument();
+		final String digest = getDigest(local);
+		final String url = client.getCouchDb() + "/" + designDocumentId;
+
+		String rev = null;
+		String deployedDigest = null;
+		JsonObject deployedSignatures = null;
+		JsonObject deployedIndex = null;
+		boolean databaseMissing = false;
+
+		if (history.getRevision(url) != null) {
+			rev = getDesignDocumentRevision(client, designDocumentId);
+			deployedDigest = history.getDigest(url, rev);
+			deployedSignatures = history.getSignatures(url, rev);
+		}
+		final boolean known = deployedDigest != null;
+		if (!known) {
+			final CouchDbResponse response = client.getDesignDocument(designDocumentId);
+			switch (response.getStatus()) {
+			case 200:
+				final JsonObject original = response.asJsonObject();
+				rev = getStringFromJson(original, "_rev");
+				deployedDigest = getDigest(original);
+				deployedSignatures = getSignatures(original);
+				deployedIndex = getIndexDefinition(original);
+				break;
+			case 404:
+				rev = null;
+				databaseMissing = isDatabaseMissing(response);
+				break;
+			default:
+				throw new CouchDbException("Unable to retrieve design document!", response);
+			}
+		}
+
+		if (!force && rev != null && digest != null && digest.equals(deployedDigest)) {
+			if (!known) history.put(url, rev, digest, deployedSignatures);
+			metrics.count("upToDate", 1);
+			getLog().info(client.getCouchDb() + ": Design document is up to date.");
+			return "up to date";
+		}
+
+		if (databaseMissing) {
+			createDatabase(client);
 		}
+
+		final JsonObject signatures = getSignatures(local);
+		final Set<String> unchanged = getUnchangedAttachments(client, signatures, rev == null ? null : deployedSignatures);
+		final HttpEntity entity = multipart ? getMultipartEntity(packaged, sourceFolder, unchanged) : new PackagedDocumentEntity(packaged.getFile(), unchanged);
+
+		boolean staging = false;
+		if (staged && rev != null) {
+			if (deployedIndex == null) {
+				final CouchDbResponse response = client.getDesignDocument(designDocumentId);
+				if (response.getStatus() != 200) {
+					throw new CouchDbException("Unable to retrieve design document!", response);
+				}
+				deployedIndex = getIndexDefinition(response.asJsonObject());
+			}
+			staging = !getIndexDefinition(local).equals(deployedIndex);
+			if (!staging) getLog().info(client.getCouchDb() + ": Views unchanged, deploying in place.");
+		}
+
+		final String result = staging ? deployStaged(client, packaged, rev, entity) : deployDesignDocument(client, designDocumentId, rev, entity);
+		if (digest != null) history.put(url, result, digest, signatures);
+		metrics.count("deployed", 1);
+		metrics.count("attachments.uploaded", packaged.getAttachments().size() - unchanged.size());
+		metrics.count("attachments.unchanged", unchanged.size());
+		return "deployed " + result + (staging ? " staged" : "");
 	}
 
-	private JsonObject getDesignDocument(String designDocumentId) throws IOException {
-		final CouchDbResponse response = getClient().getDesignDocument(designDocumentId);
+	/*
+	 * The live design document is copied to the staging id first, so the staging upload can still send unchanged
+	 * attachments as stubs. CouchDB shares the index of design documents with the same views, so once the staging
+	 * index is built, copying it over the live revision swaps in a ready index. Until then, the live design document
+	 * and its index keep serving queries.
+	 */
+	private String deployStaged(final CouchDbClient client, final PackagedDesignDocument packaged, final String rev, final HttpEntity entity) throws IOException {
+		final String designDocumentId = packaged.getId();
+		final String stagingId = designDocumentId + STAGING_SUFFIX;
+		getLog().info(client.getCouchDb() + ": Views changed, staging as " + stagingId);
+
+		final CouchDbResponse copy = client.copyDocument(designDocumentId, stagingId, getDesignDocumentRevision(client, stagingId));
+		if (copy.getStatus() != 201 && copy.getStatus() != 202) {
+			throw new CouchDbException("Unable to stage design document", copy);
+		}
+		final String stagingRev = deployDesignDocument(client, stagingId, getStringFromJson(copy.asJsonObject(), "rev"), entity);
+
+		final long start = System.nanoTime();
+		final boolean built = new ViewWarmup(client, getLog(), warmupInterval).await(stagingId, packaged.getDocument().getAsJsonObject("views"), warmupTimeout);
+		metrics.time("staging", start);
+		if (!built) {
+			throw new IOException("Index of " + stagingId + " not built after " + warmupTimeout + " ms, " + designDocumentId + " left as is");
+		}
+
+		final CouchDbResponse swap = client.copyDocument(stagingId, designDocumentId, rev);
+		if (swap.getStatus() != 201 && swap.getStatus() != 202) {
+			throw new CouchDbException("Unable to swap in the staged design document", swap);
+		}
+		metrics.count("staged", 1);
+
+		// The index stays, as the live design document now uses it
+		final CouchDbResponse delete = client.deleteDocument(stagingId, stagingRev);
+		if (delete.getStatus() != 200 && delete.getStatus() != 202) {
+			getLog().warn(client.getCouchDb() + ": Unable to remove " + stagingId + ", " + delete.getStatus() + " " + delete.getReason());
+		}
+		return getStringFromJson(swap.asJsonObject(), "rev");
+	}
+
+	/*
+	 * Also after an up to date design document, as only the documents themselves tell whether they changed.
+	 */
+	private String loadDocuments(final CouchDbClient client, final File documents, final DeployHistory history) throws IOException {
+		if (!documents.isFile()) return "";
+		final long start = System.nanoTime();
+		final DocumentLoader.Result result = new DocumentLoader(client, documentsBatchSize, documentsConcurrency).load(documents, history.getDocuments(client.getCouchDb()));
+		history.putDocuments(client.getCouchDb(), result.getHistory());
+		metrics.time("documents", start);
+		metrics.count("documents.saved", result.getSaved());
+		metrics.count("documents.unchanged", result.getUnchanged());
+		getLog().info(client.getCouchDb() + ": Saved " + result.getSaved() + " documents, " + result.getUnchanged() + " unchanged.");
+		return ", " + result.getSaved() + " documents saved";
+	}
+
+	/*
+	 * Also after an up to date deploy, as the index may still be building since the previous one.
+	 */
+	private String warmup(final CouchDbClient client, final PackagedDesignDocument packaged) throws IOException {
+		if (!warmup) return "";
+		final long start = System.nanoTime();
+		final boolean built = new ViewWarmup(client, getLog(), warmupInterval).await(packaged.getId(), packaged.getDocument().getAsJsonObject("views"), warmupTimeout);
+		metrics.time("warmup", start);
+		if (!built) metrics.count("warmup.timeouts", 1);
+		return built ? ", index built" : ", index still building";
+	}
+
+	private void createDatabase(final CouchDbClient client) throws IOException {
+		final CouchDbResponse response = client.createDatabase();
+		// 412 means another deploy created it in the meantime
+		if (response.getStatus() != 201 && response.getStatus() != 202 && response.getStatus() != 412) {
+			throw new CouchDbException("Unable to create database", response);
+		}
+	}
+
+	/*
+	 * The revision travels as query parameter, which keeps the body identical for every target. A database dropped
+	 * since the last deploy is only noticed, and created, once the upload reports it missing.
+	 */
+	private String deployDesignDocument(final CouchDbClient client, final String designDocumentId, final String rev, final HttpEntity entity) throws IOException {
+		CouchDbResponse response = client.updateDesignDocument(designDocumentId, rev, entity);
+		if (response.getStatus() == 404 && isDatabaseMissing(response)) {
+			createDatabase(client);
+			response = client.updateDesignDocument(designDocumentId, null, entity);
+		}
+		if (response.getStatus() != 201 && response.getStatus() != 202) {
+			throw new CouchDbException("Unable to save design document", response);
+		}
+		return getStringFromJson(response.asJsonObject(), "rev");
+	}
+
+	/*
+	 * The attachments are streamed from the source folder, in the order of their stubs in the JSON part. Attachments
+	 * minified or gzipped while packaging are streamed from the target folder instead, gzipped ones are stored by
+	 * CouchDB as they are.
+	 */
+	private HttpEntity getMultipartEntity(final PackagedDesignDocument designDocument, final File sourceFolder, final Set<String> unchanged) throws IOException {
+		final File attachmentsFolder = new File(sourceFolder, "_attachments");
+		final AttachmentCompressor compressor = new AttachmentCompressor(new File(designDocument.getFile().getParentFile(), "couchapp-gzip"), 0);
+		final Minifier minifier = new Minifier(new File(designDocument.getFile().getParentFile(), "couchapp-minify"));
+		final JsonObject stubs = new JsonObject();
+		final List<File> files = new ArrayList<>();
+		for (Entry<String, JsonObject> entry : designDocument.getAttachments().entrySet()) {
+			if (unchanged.contains(entry.getKey())) {
+				stubs.add(entry.getKey(), getStub());
+				continue;
+			}
+			final boolean minified = entry.getValue().has("minified") && entry.getValue().get("minified").getAsBoolean();
+			final File file = minified ? minifier.getFile("_attachments/" + entry.getKey()) : new File(attachmentsFolder, entry.getKey());
+			if (!file.isFile()) {
+				throw new IOException("Attachment " + entry.getKey() + " not found in " + file.getParentFile());
+			}
+			final JsonObject stub = new JsonObject();
+			stub.add("content_type", entry.getValue().get("content_type"));
+			stub.addProperty("follows", true);
+			stub.addProperty("length", file.length());
+			if (entry.getValue().has("encoding")) {
+				final File encoded = compressor.getFile(entry.getKey());
+				if (encoded.length() != entry.getValue().get("encoded_length").getAsLong()) {
+					throw new IOException("Compressed attachment " + encoded + " does not match the package, package again");
+				}
+				stub.add("encoding", entry.getValue().get("encoding"));
+				stub.add("encoded_length", entry.getValue().get("encoded_length"));
+				files.add(encoded);
+			} else {
+				files.add(file);
+			}
+			stubs.add(entry.getKey(), stub);
+		}
+		final byte[] body = bodies.computeIfAbsent(unchanged, key -> {
+			final JsonObject document = new JsonObject();
+			for (Entry<String, JsonElement> entry : designDocument.getDocument().entrySet()) {
+				document.add(entry.getKey(), entry.getValue());
+			}
+			document.add("_attachments", stubs);
+			return document.toString().getBytes(StandardCharsets.UTF_8);
+		});
+		return new MultipartRelatedEntity(body, files);
+	}
+
+	/*
+	 * An attachment is unchanged when the deployed design document holds it under the same signature.
+	 */
+	private Set<String> getUnchangedAttachments(final CouchDbClient client, final JsonObject local, final JsonObject deployed) {
+		final Set<String> result = new HashSet<>();
+		if (!diff || local == null || deployed == null) {
+			return result;
+		}
+		for (Entry<String, JsonElement> entry : local.entrySet()) {
+			if (entry.getValue().equals(deployed.get(entry.getKey()))) {
+				result.add(entry.getKey());
+			}
+		}
+		getLog().info(client.getCouchDb() + ": Uploading " + (local.entrySet().size() - result.size()) + " of " + local.entrySet().size() + " attachments.");
+		return result;
+	}
+
+	/*
+	 * Only signatures of attachments the design document actually holds count.
+	 */
+	private JsonObject getSignatures(final JsonObject designDocument) {
+		final JsonObject couchapp = designDocument.getAsJsonObject("couchapp");
+		if (couchapp == null || !couchapp.has("signatures")) return null;
+		final JsonObject attachments = designDocument.getAsJsonObject("_attachments");
+		if (attachments == null) return couchapp.getAsJsonObject("signatures");
+		final JsonObject result = new JsonObject();
+		for (Entry<String, JsonElement> entry : couchapp.getAsJsonObject("signatures").entrySet()) {
+			if (attachments.has(entry.getKey())) result.add(entry.getKey(), entry.getValue());
+		}
+		return result;
+	}
+
+	/*
+	 * CouchDB 2 and later answer "Database does not exist.", 1.x answers "no_db_file".
+	 */
+	private boolean isDatabaseMissing(final CouchDbResponse response) {
+		final JsonObject body = response.asJsonObject();
+		if (body == null || !body.has("reason")) return false;
+		final String reason = body.get("reason").getAsString();
+		return "Database does not exist.".equals(reason) || "no_db_file".equals(reason);
+	}
+
+	/*
+	 * The parts of a design document that make up the signature of its view index.
+	 */
+	private JsonObject getIndexDefinition(final JsonObject designDocument) {
+		final JsonObject result = new JsonObject();
+		for (String name : new String[] { "language", "views", "options" }) {
+			if (designDocument.has(name)) result.add(name, designDocument.get(name));
+		}
+		return result;
+	}
+
+	private String getDigest(final JsonObject designDocument) {
+		final JsonObject couchapp = designDocument.getAsJsonObject("couchapp");
+		if (couchapp == null || !couchapp.has("digest")) return null;
+		return couchapp.get("digest").getAsString();
+	}
+
+	/*
+	 * A HEAD request returns the current revision as ETag, without transferring the design document.
+	 */
+	private String getDesignDocumentRevision(final CouchDbClient client, final String designDocumentId) throws IOException {
+		final CouchDbResponse response = client.checkForDesignDocument(designDocumentId);
 		switch (response.getStatus()) {
-		case 200: return response.asJsonObject();
+		case 200:
+			final String etag = response.getHeaders().get("ETag");
+			return etag == null ? null : etag.replace("\"", "");
 		case 404: return null;
-		default: throw new IOException("Unable to retrieve design document!");
+		default: throw new CouchDbException("Unable to check for design document!", response);
+		}
+	}
+
+	/*
+	 * Exponential backoff with full jitter, so concurrent deploys do not retry in lockstep.
+	 */
+	private long getRetryDelay(final int attempt) {
+		final long delay = Math.min(retryMaxDelay, retryDelay * (1L << Math.min(attempt - 1, 20)));
+		return ThreadLocalRandom.current().nextLong(delay + 1);
+	}
+
+	/*
+	 * Conflicts, server errors and timeouts are worth another attempt, client errors are not.
+	 */
+	private boolean isRetryable(final IOException e) {
+		if (e instanceof CouchDbException) {
+			final int status = ((CouchDbException) e).getStatus();
+			return status == 409 || status >= 500;
 		}
+		return e instanceof InterruptedIOException
+				|| e instanceof SocketException
+				|| e instanceof NoHttpResponseException;
+	}
+
+	private JsonObject getStub() {
+		final JsonObject result = new JsonObject();
+		result.addProperty("stub", true);
+		return result;
 	}
 
 }
@@ -7,8 +7,16 @@ import java.net.URISyntaxException;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.xml.bind.DatatypeConverter;
 
@@ -24,6 +32,7 @@ import com.google.gson.GsonBuilder;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
 
 public abstract class CouchAppMojo extends AbstractMojo {
 
@@ -31,6 +40,8 @@ public abstract class CouchAppMojo extends AbstractMojo {
 
 	private CouchDbClient client;
 
+	protected final Metrics metrics = new Metrics();
+
 	/**
 	 * Debug logging
 	 */
@@ -49,6 +60,18 @@ public abstract class CouchAppMojo extends AbstractMojo {
 	@Parameter(property = "source", defaultValue = "${project.basedir}/src")
 	protected String source;
 
+	/**
+	 * Several source directories, each a couchapp packaged and deployed on its own, instead of the single source
+	 */
+	@Parameter
+	protected List<String> sources;
+
+	/**
+	 * Maximum number of couchapps from sources packaged or deployed at the same time
+	 */
+	@Parameter(property = "sources.concurrency", defaultValue = "4")
+	protected int sourcesConcurrency = 4;
+
 	/**
 	 * The target directory
 	 */
@@ -97,13 +120,100 @@ public abstract class CouchAppMojo extends AbstractMojo {
 	@Parameter(property = "couchdb.pass", defaultValue = "")
 	protected String couchdbPass;
 
+	/**
+	 * Maximum number of pooled connections
+	 */
+	@Parameter(property = "couchdb.maxConnections", defaultValue = "20")
+	protected int couchdbMaxConnections = 20;
+
+	/**
+	 * Maximum number of pooled connections per route
+	 */
+	@Parameter(property = "couchdb.maxConnectionsPerRoute", defaultValue = "8")
+	protected int couchdbMaxConnectionsPerRoute = 8;
+
+	/**
+	 * CouchDB connect timeout in milliseconds
+	 */
+	@Parameter(property = "couchdb.connectTimeout", defaultValue = "10000")
+	protected int couchdbConnectTimeout = 10000;
+
+	/**
+	 * CouchDB socket timeout in milliseconds
+	 */
+	@Parameter(property = "couchdb.socketTimeout", defaultValue = "60000")
+	protected int couchdbSocketTimeout = 60000;
+
+	/**
+	 * Timeout in milliseconds for obtaining a pooled connection
+	 */
+	@Parameter(property = "couchdb.requestTimeout", defaultValue = "30000")
+	protected int couchdbRequestTimeout = 30000;
+
+	/**
+	 * Compress request bodies, and accept compressed responses
+	 */
+	@Parameter(property = "couchdb.gzip", defaultValue = "false")
+	protected boolean couchdbGzip;
+
+	/**
+	 * Minimum request body size in bytes before it gets compressed
+	 */
+	@Parameter(property = "couchdb.gzipThreshold", defaultValue = "1024")
+	protected int couchdbGzipThreshold = 1024;
+
+	/**
+	 * Maximum response body size in bytes kept in memory
+	 */
+	@Parameter(property = "couchdb.maxResponseSize", defaultValue = "16777216")
+	protected long couchdbMaxResponseSize = 16777216;
+
+	/**
+	 * Attachment content types keyed on file extension, on top of the built-in table
+	 */
+	@Parameter
+	protected Map<String, String> contentTypes;
+
 	protected CouchDbClient getClient() {
 		if (client == null) {
-			client = new CouchDbClient(getResourceUrl(), debug);
+			client = createClient(getResourceUrl());
 		}
 		return client;
 	}
 
+	protected CouchDbClient createClient(final String url) {
+		final CouchDbClient result = new CouchDbClient(url, debug, getSettings());
+		result.setMetrics(metrics);
+		return result;
+	}
+
+	/*
+	 * Written on every run, so packaging and deploy cost can be compared across builds.
+	 */
+	protected void reportMetrics(final String goal, final File targetFolder) throws IOException {
+		final File report = new File(targetFolder, "couchapp-" + goal + "-metrics.json");
+		metrics.write(report, goal);
+		getLog().info("Metrics: " + metrics.getSummary());
+		if (debug) getLog().debug("Metrics written to " + report);
+	}
+
+	protected ContentTypes getContentTypes() {
+		return new ContentTypes(contentTypes);
+	}
+
+	protected CouchDbSettings getSettings() {
+		final CouchDbSettings result = new CouchDbSettings();
+		result.setMaxConnections(couchdbMaxConnections);
+		result.setMaxConnectionsPerRoute(couchdbMaxConnectionsPerRoute);
+		result.setConnectTimeout(couchdbConnectTimeout);
+		result.setSocketTimeout(couchdbSocketTimeout);
+		result.setRequestTimeout(couchdbRequestTimeout);
+		result.setGzip(couchdbGzip);
+		result.setGzipThreshold(couchdbGzipThreshold);
+		result.setMaxResponseSize(couchdbMaxResponseSize);
+		return result;
+	}
+
 	protected String getResourceUrl() {
 		if (isEmpty(couchdbUser) || isEmpty(couchdbPass)) {
 			if (hasDefaultPort()) {
@@ -124,6 +234,96 @@ public abstract class CouchAppMojo extends AbstractMojo {
 		return ("http".contentEquals(couchdbScheme) && (couchdbPort == 80)) || ("https".contentEquals(couchdbScheme) && couchdbPort == 443);
 	}
 
+	/*
+	 * Runs a copy of this mojo for every couchapp in sources, each with a target folder of its own named after its
+	 * source folder. Connection pools are shared per endpoint, so concurrent couchapps reuse the same connections.
+	 * Returns false without sources, so the mojo handles its single source itself.
+	 */
+	protected boolean executeSources(final String goal) throws MojoExecutionException, MojoFailureException {
+		if (sources == null || sources.isEmpty()) return false;
+		final Map<String, File> apps = new LinkedHashMap<>();
+		for (String path : sources) {
+			if (isEmpty(path)) continue;
+			final File folder = new File(path.trim());
+			if (apps.put(folder.getName(), folder) != null) {
+				throw new MojoExecutionException("Sources share the folder name " + folder.getName() + ", which names their target folder");
+			}
+		}
+		final String title = goal.substring(0, 1).toUpperCase(Locale.ROOT) + goal.substring(1);
+		final List<String> names = new ArrayList<>(apps.keySet());
+		final List<Future<Long>> results = new ArrayList<>();
+		final ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(sourcesConcurrency, names.size())));
+		try {
+			for (String name : names) {
+				final CouchAppMojo mojo;
+				try {
+					mojo = getClass().newInstance();
+				} catch (InstantiationException | IllegalAccessException e) {
+					throw new MojoExecutionException("Unable to create " + goal + " for " + name, e);
+				}
+				configure(mojo);
+				mojo.skip = skip;
+				mojo.source = apps.get(name).getPath();
+				mojo.target = new File(new File(target, "couchapps"), name).getPath();
+				results.add(executor.submit(() -> {
+					final long start = System.currentTimeMillis();
+					mojo.execute();
+					return System.currentTimeMillis() - start;
+				}));
+			}
+			final List<String> summary = new ArrayList<>();
+			int failures = 0;
+			for (int i = 0; i < names.size(); i++) {
+				try {
+					summary.add(names.get(i) + ": OK in " + results.get(i).get() + " ms");
+				} catch (ExecutionException e) {
+					failures++;
+					final Throwable cause = e.getCause().getCause() != null ? e.getCause().getCause() : e.getCause();
+					summary.add(names.get(i) + ": FAILED, " + cause.getMessage());
+				}
+			}
+			getLog().info(title + " summary:");
+			for (String line : summary) {
+				getLog().info("  " + line);
+			}
+			if (failures > 0) {
+				throw new MojoFailureException(title + " failed for " + failures + " of " + names.size() + " couchapps");
+			}
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new MojoExecutionException(title + " interrupted.", e);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/*
+	 * Hands the shared configuration to a mojo executed on behalf of this one.
+	 */
+	protected void configure(final CouchAppMojo mojo) {
+		mojo.setLog(getLog());
+		mojo.debug = debug;
+		mojo.debugWire = debugWire;
+		mojo.source = source;
+		mojo.target = target;
+		mojo.couchdbScheme = couchdbScheme;
+		mojo.couchdbHost = couchdbHost;
+		mojo.couchdbPort = couchdbPort;
+		mojo.couchdbDb = couchdbDb;
+		mojo.couchdbUser = couchdbUser;
+		mojo.couchdbPass = couchdbPass;
+		mojo.couchdbMaxConnections = couchdbMaxConnections;
+		mojo.couchdbMaxConnectionsPerRoute = couchdbMaxConnectionsPerRoute;
+		mojo.couchdbConnectTimeout = couchdbConnectTimeout;
+		mojo.couchdbSocketTimeout = couchdbSocketTimeout;
+		mojo.couchdbRequestTimeout = couchdbRequestTimeout;
+		mojo.couchdbGzip = couchdbGzip;
+		mojo.couchdbGzipThreshold = couchdbGzipThreshold;
+		mojo.couchdbMaxResponseSize = couchdbMaxResponseSize;
+		mojo.contentTypes = contentTypes;
+	}
+
 	protected void setDebug(final boolean debug) {
 		this.debug = debug;
 	}
@@ -161,6 +361,14 @@ public abstract class CouchAppMojo extends AbstractMojo {
 		}
 	}
 
+	protected void setCouchdbGzip(final boolean couchdbGzip) {
+		this.couchdbGzip = couchdbGzip;
+	}
+
+	protected void setCouchdbGzipThreshold(final int couchdbGzipThreshold) {
+		this.couchdbGzipThreshold = couchdbGzipThreshold;
+	}
+
 	protected void setSkip(final boolean skip) {
 		this.skip = skip;
 	}
@@ -169,6 +377,10 @@ public abstract class CouchAppMojo extends AbstractMojo {
 		this.source = source;
 	}
 
+	protected void setSources(final List<String> sources) {
+		this.sources = sources;
+	}
+
 	protected void setTarget(final String target) {
 		this.target = target;
 	}
@@ -211,6 +423,8 @@ public abstract class CouchAppMojo extends AbstractMojo {
 			getLog().debug("debug.wire: " + debugWire);
 			getLog().debug("skip: " + skip);
 			getLog().debug("source: " + source);
+			getLog().debug("sources: " + sources);
+			getLog().debug("sources.concurrency: " + sourcesConcurrency);
 			getLog().debug("target: " + target);
 			getLog().debug("couchdb.scheme: " + couchdbScheme);
 			getLog().debug("couchdb.host: " + couchdbHost);
@@ -218,6 +432,15 @@ public abstract class CouchAppMojo extends AbstractMojo {
 			getLog().debug("couchdb.db: " + couchdbDb);
 			getLog().debug("couchdb.user: " + couchdbUser);
 			getLog().debug("couchdb.pass: " + couchdbPass);
+			getLog().debug("couchdb.maxConnections: " + couchdbMaxConnections);
+			getLog().debug("couchdb.maxConnectionsPerRoute: " + couchdbMaxConnectionsPerRoute);
+			getLog().debug("couchdb.connectTimeout: " + couchdbConnectTimeout);
+			getLog().debug("couchdb.socketTimeout: " + couchdbSocketTimeout);
+			getLog().debug("couchdb.requestTimeout: " + couchdbRequestTimeout);
+			getLog().debug("couchdb.gzip: " + couchdbGzip);
+			getLog().debug("couchdb.gzipThreshold: " + couchdbGzipThreshold);
+			getLog().debug("couchdb.maxResponseSize: " + couchdbMaxResponseSize);
+			getLog().debug("contentTypes: " + contentTypes);
 		}
 	}
 
@@ -256,6 +479,11 @@ public abstract class CouchAppMojo extends AbstractMojo {
 		}
 	}
 
+	public static String getJavascriptName(final File file) {
+		final String result = file.getName();
+		return result.substring(0, result.length() - 3);
+	}
+
 	public static JsonObject getJsonFromMap(Map<String, String> map) {
 		final JsonObject result = new JsonObject();
 		for (Entry<String, String> entry : map.entrySet()) {
@@ -268,6 +496,13 @@ public abstract class CouchAppMojo extends AbstractMojo {
 		return GSON.fromJson(string, JsonObject.class);
 	}
 
+	public static String getRelativeFilename(final File file, final File root) {
+		if (file.getAbsolutePath().startsWith(root.getAbsolutePath())) {
+			return file.getAbsolutePath().substring(root.getAbsolutePath().length() + 1).replace("\\", "/");
+		}
+		return null;
+	}
+
 	public static String getStringFromJson(final JsonObject object, String... paths) {
 		JsonObject result = object;
 		for (int i = 0; i < paths.length - 1; i++) {
@@ -292,4 +527,8 @@ public abstract class CouchAppMojo extends AbstractMojo {
 		return FileUtils.readFileToString(file, StandardCharsets.UTF_8);
 	}
 
+	public static void writeJson(final JsonElement element, final JsonWriter writer) throws IOException {
+		GSON.toJson(element, writer);
+	}
+
 }
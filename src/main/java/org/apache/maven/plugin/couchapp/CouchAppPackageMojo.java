@@ -1,20 +1,38 @@
 package org.apache.maven.plugin.couchapp;
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileFilter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
 import org.apache.maven.plugins.annotations.LifecyclePhase;
 import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
 import org.apache.maven.plugins.annotations.ResolutionScope;
 
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonWriter;
 
 /**
  * Upload a couchapp to CouchDB
@@ -42,6 +60,46 @@ public class CouchAppPackageMojo extends CouchAppMojo {
 		}
 	};
 
+	private final ThreadLocal<AttachmentEncoder> encoders = new ThreadLocal<>();
+
+	private ExecutorService executor;
+	private PackageCache packageCache;
+	private ContentTypes types;
+	private AttachmentCompressor compressor;
+	private Minifier minifier;
+
+	/**
+	 * Reuse unchanged parts of the previous build
+	 */
+	@Parameter(property = "package.cache", defaultValue = "true")
+	protected boolean cache = true;
+
+	/**
+	 * Number of threads used to read and encode files
+	 */
+	@Parameter(property = "package.parallelism", defaultValue = "1")
+	protected int parallelism = 1;
+
+	/**
+	 * Gzip compressible attachments, to be uploaded pre-encoded by multipart deploys. Only these make use of them, so
+	 * packaging does not pay for it unless asked.
+	 */
+	@Parameter(property = "package.gzip", defaultValue = "false")
+	protected boolean gzip;
+
+	/**
+	 * Deflate level for gzipped attachments, from 1 to 9. Beyond the zlib default of 6, the time spent grows much
+	 * faster than the size shrinks.
+	 */
+	@Parameter(property = "package.gzipLevel", defaultValue = "6")
+	protected int gzipLevel = 6;
+
+	/**
+	 * Strip comments and whitespace from functions, and from JavaScript, CSS and HTML attachments
+	 */
+	@Parameter(property = "package.minify", defaultValue = "false")
+	protected boolean minify;
+
 	@Override
 	public void execute() throws MojoExecutionException, MojoFailureException {
 		try {
@@ -52,43 +110,156 @@ public class CouchAppPackageMojo extends CouchAppMojo {
 				getLog().info("Skipping.");
 				return;
 			}
+			if (executeSources("package")) return;
 
 			initialize();
+			metrics.reset();
 
 			final File sourceFolder = checkSource();
 			if (sourceFolder == null) return;
 
 			final File targetFolder = checkTarget();
 
+			final File designDocument = new File(targetFolder.toString(), "couchapp.json");
+			final File documents = new File(targetFolder.toString(), "couchapp-docs.json");
+			final boolean hasDocuments = new File(sourceFolder, "_docs").isDirectory();
+			types = getContentTypes();
+			compressor = gzip ? new AttachmentCompressor(new File(targetFolder.toString(), "couchapp-gzip"), gzipLevel) : null;
+			packageCache = null;
+			if (cache) {
+				final long scan = System.nanoTime();
+				packageCache = new PackageCache(new File(targetFolder.toString(), "couchapp-cache"), getCacheConfiguration(sourceFolder));
+				packageCache.load(sourceFolder);
+				metrics.time("scan", scan);
+				if (packageCache.isUpToDate(designDocument) && hasDocuments == documents.isFile()) {
+					getLog().info("Design document is up to date.");
+					reportMetrics("package", targetFolder);
+					return;
+				}
+			} else if (parallelism > 1) {
+				// Workers need somewhere to leave their encoded payloads, until the writer picks them up in order
+				packageCache = new PackageCache(new File(targetFolder.toString(), "couchapp-staging"), getCacheConfiguration(sourceFolder));
+			}
+
+			minifier = minify ? new Minifier(new File(targetFolder.toString(), "couchapp-minify")) : null;
+			if (minifier != null) minifier.load();
+
+			final long read = System.nanoTime();
 			final String designDocumentId = readFileAsString(new File(sourceFolder.toString(), "_id"));
 			final String language = readFileAsString(new File(sourceFolder.toString(), "language"));
 			final JsonObject couchapp = readFileAsJsonObject(new File(sourceFolder.toString(), "couchapp.json"));
 			final JsonArray rewrites = readFileAsJsonArray(new File(sourceFolder.toString(), "rewrites.json"));
 			final String readme = readFileAsString(new File(sourceFolder.toString(), "README.txt"));
+			metrics.time("read", read);
 
-			final JsonObject designDocument = createDesignDocument(
-					designDocumentId,
-					rewrites,
-					language,
-					readme,
-					couchapp);
-			if (debug) getLog().debug(prettyPrint(designDocument));
-			saveDesignDocument(designDocument, targetFolder);
+			executor = parallelism > 1 ? Executors.newFixedThreadPool(parallelism) : null;
+			final long write = System.nanoTime();
+			final DesignDocumentWriter writer = new DesignDocumentWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(designDocument), StandardCharsets.UTF_8)));
+			try {
+				writeDesignDocument(
+						writer,
+						sourceFolder,
+						designDocumentId,
+						rewrites,
+						language,
+						readme,
+						couchapp);
+			} finally {
+				writer.close();
+				if (executor != null) executor.shutdownNow();
+			}
+			metrics.time("write", write);
+			metrics.count("output.bytes", designDocument.length());
+			writeDocuments(sourceFolder, documents);
+			if (minifier != null) {
+				minifier.save();
+				getLog().info("Minified " + metrics.getCount("minify.files") + " files from " + metrics.getCount("minify.bytes") + " to " + metrics.getCount("minify.minifiedBytes") + " bytes.");
+			}
+			if (cache) {
+				packageCache.save(designDocument);
+			} else if (packageCache != null) {
+				FileUtils.deleteDirectory(new File(targetFolder.toString(), "couchapp-staging"));
+			}
+			if (debug) getLog().debug("Design document written to " + designDocument);
+			reportMetrics("package", targetFolder);
 
 		} catch (IOException e) {
 			throw new MojoExecutionException("Something went wrong.", e);
 		}
 	}
 
-	private JsonObject createDesignDocument(
+	@Override
+	protected void debug() throws MojoExecutionException, MojoFailureException {
+		super.debug();
+		if (debug) {
+			getLog().debug("package.cache: " + cache);
+			getLog().debug("package.parallelism: " + parallelism);
+			getLog().debug("package.gzip: " + gzip);
+			getLog().debug("package.gzipLevel: " + gzipLevel);
+			getLog().debug("package.minify: " + minify);
+		}
+	}
+
+	@Override
+	protected void configure(final CouchAppMojo mojo) {
+		super.configure(mojo);
+		if (mojo instanceof CouchAppPackageMojo) {
+			final CouchAppPackageMojo packager = (CouchAppPackageMojo) mojo;
+			packager.cache = cache;
+			packager.parallelism = parallelism;
+			packager.gzip = gzip;
+			packager.gzipLevel = gzipLevel;
+			packager.minify = minify;
+		}
+	}
+
+	protected void setCache(final boolean cache) {
+		this.cache = cache;
+	}
+
+	protected void setGzip(final boolean gzip) {
+		this.gzip = gzip;
+	}
+
+	protected void setMinify(final boolean minify) {
+		this.minify = minify;
+	}
+
+	protected void setParallelism(final int parallelism) {
+		this.parallelism = parallelism;
+	}
+
+	/*
+	 * Settings that change the packaged output invalidate the cache as a whole.
+	 */
+	private JsonObject getCacheConfiguration(final File sourceFolder) {
+		final JsonObject result = new JsonObject();
+		result.addProperty("source", sourceFolder.getAbsolutePath());
+		result.addProperty("contentTypes", types.toString());
+		result.addProperty("gzip", gzip ? gzipLevel : 0);
+		result.addProperty("minify", minify);
+		return result;
+	}
+
+	/*
+	 * The design document is streamed section by section, so only a single attachment is held in memory at any time.
+	 * Attachments are written before the couchapp section, as the latter carries the signatures gathered from them,
+	 * as well as the digest of everything written before it.
+	 */
+	private void writeDesignDocument(
+			final DesignDocumentWriter writer,
+			final File sourceFolder,
 			final String documentId,
 			final JsonArray rewrites,
 			final String language,
 			final String readme,
 			final JsonObject couchapp) throws IOException {
-		final JsonObject result = new JsonObject();
+		// Attachments are the bulk of the work, so their encoding starts before anything else gets written
+		final List<Future<Attachment>> attachments = prepareAttachments(sourceFolder);
+
+		writer.beginObject();
 
-		result.addProperty("_id", documentId);
+		writer.name("_id").value(documentId);
 
 		final JsonArray manifest = new JsonArray();
 		couchapp.add("manifest", manifest);
@@ -104,113 +275,295 @@ public class CouchAppPackageMojo extends CouchAppMojo {
 		final JsonObject objects = new JsonObject();
 		couchapp.add("objects", objects);
 
-		result.add("rewrites", rewrites);
-		result.addProperty("language", language);
-		createViews(result, manifest);
-		createLists(result, manifest);
-		result.addProperty("README", readme);
-		createShows(result, manifest);
-		result.add("couchapp", couchapp);
-		createAttachments(result, signatures);
-		return result;
+		writer.name("rewrites");
+		writeJson(rewrites, writer);
+		writer.name("language").value(language);
+		writeViews(writer, sourceFolder, manifest);
+		writeLists(writer, sourceFolder, manifest);
+		writer.name("README").value(readme);
+		writeShows(writer, sourceFolder, manifest);
+		writeAttachments(writer, attachments, signatures);
+		writer.digest(couchapp.toString());
+		couchapp.addProperty("digest", writer.getDigest());
+		writer.name("couchapp");
+		writeJson(couchapp, writer);
+
+		writer.endObject();
 	}
 
-	private void attachFiles(final File folder, final JsonObject list, final File root, final JsonObject signatures) throws IOException {
-		for (File file : folder.listFiles()) {
+	/*
+	 * Seed documents go to a file of their own, as an array streamed one document at a time, since they may well
+	 * outnumber everything else. Documents without an _id are named after their path, without the extension.
+	 */
+	private void writeDocuments(final File sourceFolder, final File output) throws IOException {
+		final File documentsFolder = new File(sourceFolder, "_docs");
+		if (!documentsFolder.isDirectory()) {
+			FileUtils.deleteQuietly(output);
+			return;
+		}
+		final long write = System.nanoTime();
+		final List<File> files = new ArrayList<>(FileUtils.listFiles(documentsFolder, new String[] { "json" }, true));
+		Collections.sort(files);
+		final Set<String> ids = new HashSet<>();
+		try (JsonWriter writer = new JsonWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(output), StandardCharsets.UTF_8)))) {
+			writer.beginArray();
+			for (File file : files) {
+				final JsonObject document;
+				try {
+					document = readFileAsJsonObject(file);
+				} catch (JsonParseException e) {
+					throw new IOException("Document " + file + " is not a JSON object", e);
+				}
+				if (document == null) {
+					throw new IOException("Document " + file + " is empty");
+				}
+				if (!document.has("_id")) {
+					final String name = getRelativeFilename(file, documentsFolder);
+					document.addProperty("_id", name.substring(0, name.length() - ".json".length()));
+				}
+				document.remove("_rev");
+				if (!ids.add(document.get("_id").getAsString())) {
+					throw new IOException("Document " + file + " repeats the _id " + document.get("_id").getAsString());
+				}
+				writeJson(document, writer);
+			}
+			writer.endArray();
+		}
+		metrics.time("documents", write);
+		metrics.count("documents", files.size());
+		getLog().info("Packaged " + files.size() + " documents.");
+	}
+
+	private void attachFiles(final File folder, final File root, final List<Future<Attachment>> attachments) throws IOException {
+		final long scan = System.nanoTime();
+		final File[] files = sort(folder.listFiles());
+		metrics.time("scan", scan);
+		for (File file : files) {
 			if (file.isDirectory()) {
-				attachFiles(file, list, root, signatures);
+				attachFiles(file, root, attachments);
 			} else {
-				final JsonObject attachment = new JsonObject();
-				final String name = getRelativeFilename(file, root);
-				list.add(name, attachment);
-				final String type = Files.probeContentType(file.toPath());
-				if (type == null) {
-					attachment.addProperty("content_type", "application/octet-stream");
-				} else {
-					attachment.addProperty("content_type", type);
-				}
-				final byte[] data = FileUtils.readFileToByteArray(file);
-				attachment.addProperty("data", base64encode(data));
-				signatures.addProperty(name, md5(data));
+				attachments.add(submit(new Callable<Attachment>() {
+					@Override
+					public Attachment call() throws IOException {
+						return createAttachment(file, root);
+					}
+				}));
 			}
 		}
 	}
 
-	private void createAttachments(final JsonObject designDocument, final JsonObject signatures) throws IOException {
-		final File attachmentsFolder = new File(source, "_attachments");
+	/*
+	 * Hashing happens in the same pass as encoding, so both are timed as encode.
+	 */
+	private Attachment createAttachment(final File file, final File root) throws IOException {
+		final String name = getRelativeFilename(file, root);
+		final String contentType = types.get(file);
+		final boolean minified = minifier != null && Minifier.isMinifiable(name, contentType);
+		final Attachment result = new Attachment(minified ? minify(file, "_attachments/" + name, contentType) : file, name);
+		result.contentType = contentType;
+		result.minified = minified;
+		final long encode = System.nanoTime();
+		if (packageCache != null) {
+			result.md5 = packageCache.attach(result.file, getRelativeFilename(file, root.getParentFile()), getEncoder());
+		}
+		metrics.time("encode", encode);
+		if (compressor != null && ContentTypes.isCompressible(result.contentType)) {
+			final long compress = System.nanoTime();
+			result.encodedLength = compressor.compress(result.file, result.name);
+			metrics.time("compress", compress);
+		}
+		return result;
+	}
+
+	private List<Future<Attachment>> prepareAttachments(final File sourceFolder) throws IOException {
+		final List<Future<Attachment>> result = new ArrayList<>();
+		final File attachmentsFolder = new File(sourceFolder, "_attachments");
 		if (attachmentsFolder.isDirectory()) {
-			final JsonObject attachments = new JsonObject();
-			attachFiles(attachmentsFolder, attachments, attachmentsFolder, signatures);
-			designDocument.add("_attachments", attachments);
+			attachFiles(attachmentsFolder, attachmentsFolder, result);
+			return result;
 		} else {
 			getLog().warn("No attachments folder found!");
+			return null;
+		}
+	}
+
+	private void writeAttachments(final DesignDocumentWriter writer, final List<Future<Attachment>> attachments, final JsonObject signatures) throws IOException {
+		if (attachments != null) {
+			writer.name("_attachments");
+			writer.beginObject();
+			for (Future<Attachment> future : attachments) {
+				final Attachment attachment = get(future);
+				writer.name(attachment.name);
+				writer.beginObject();
+				writer.name("content_type").value(attachment.contentType);
+				if (attachment.minified) {
+					writer.name("minified").value(true);
+				}
+				if (attachment.encodedLength >= 0) {
+					writer.name("encoding").value("gzip");
+					writer.name("encoded_length").value(attachment.encodedLength);
+					metrics.count("attachments.gzipped", 1);
+					metrics.count("attachments.gzippedBytes", attachment.encodedLength);
+				}
+				writer.name("data");
+				if (attachment.md5 == null) {
+					final long encode = System.nanoTime();
+					attachment.md5 = writer.attachmentValue(attachment.file, getEncoder());
+					metrics.time("encode", encode);
+				} else {
+					writer.payloadValue(packageCache.getPayload(attachment.md5), attachment.md5);
+				}
+				signatures.addProperty(attachment.name, attachment.md5);
+				metrics.count("attachments", 1);
+				metrics.count("attachments.bytes", attachment.file.length());
+				metrics.count("attachments.encodedBytes", (attachment.file.length() + 2) / 3 * 4);
+				writer.endObject();
+			}
+			writer.endObject();
 		}
 	}
 
-	private void createLists(final JsonObject designDocument, final JsonArray manifest) throws IOException {
-		final File listsFolder = new File(source, "lists");
+	private void writeLists(final DesignDocumentWriter writer, final File sourceFolder, final JsonArray manifest) throws IOException {
+		final File listsFolder = new File(sourceFolder, "lists");
 		if (listsFolder.isDirectory()) {
-			final JsonObject lists = new JsonObject();
+			writer.name("lists");
+			writer.beginObject();
 			manifest.add("lists/");
-			for (File file : listsFolder.listFiles(onlyJavascript)) {
-				lists.addProperty(getJavascriptName(file), readFileAsString(file));
-				manifest.add("lists/" + getRelativeFilename(file, listsFolder));
-			}
-			designDocument.add("lists", lists);
+			writeFunctions(writer, sort(listsFolder.listFiles(onlyJavascript)), listsFolder, "lists/", manifest);
+			writer.endObject();
 		} else {
 			getLog().warn("No lists folder found!");
 		}
 	}
 
-	private void createShows(final JsonObject designDocument, final JsonArray manifest) throws IOException {
-		final File showsFolder = new File(source, "shows");
+	private void writeShows(final DesignDocumentWriter writer, final File sourceFolder, final JsonArray manifest) throws IOException {
+		final File showsFolder = new File(sourceFolder, "shows");
 		if (showsFolder.isDirectory()) {
-			final JsonObject shows = new JsonObject();
+			writer.name("shows");
+			writer.beginObject();
 			manifest.add("shows/");
-			for (File file : showsFolder.listFiles(onlyJavascript)) {
-				shows.addProperty(getJavascriptName(file), readFileAsString(file));
-				manifest.add("shows/" + getRelativeFilename(file, showsFolder));
-			}
-			designDocument.add("shows", shows);
+			writeFunctions(writer, sort(showsFolder.listFiles(onlyJavascript)), showsFolder, "shows/", manifest);
+			writer.endObject();
 		} else {
 			getLog().warn("No shows folder found!");
 		}
 	}
 
-	private void createViews(final JsonObject designDocument, final JsonArray manifest) throws IOException {
-		final File viewsFolder = new File(source, "views");
+	private void writeViews(final DesignDocumentWriter writer, final File sourceFolder, final JsonArray manifest) throws IOException {
+		final File viewsFolder = new File(sourceFolder, "views");
 		if (viewsFolder.isDirectory()) {
-			final JsonObject views = new JsonObject();
+			writer.name("views");
+			writer.beginObject();
 			manifest.add("views/");
-			for (File folder : viewsFolder.listFiles(onlyFolders)) {
-				final JsonObject view = new JsonObject();
-				views.add(folder.getName(), view);
+			for (File folder : sort(viewsFolder.listFiles(onlyFolders))) {
+				writer.name(folder.getName());
+				writer.beginObject();
 				manifest.add("views/" + getRelativeFilename(folder, viewsFolder) + "/");
-				for (File file : folder.listFiles(onlyJavascript)) {
-					view.addProperty(getJavascriptName(file), readFileAsString(file));
-					manifest.add("views/" + getRelativeFilename(file, viewsFolder));
-				}
+				writeFunctions(writer, sort(folder.listFiles(onlyJavascript)), viewsFolder, "views/", manifest);
+				writer.endObject();
 			}
-			designDocument.add("views", views);
+			writer.endObject();
 		} else {
 			getLog().warn("No views folder found!");
 		}
 	}
 
-	private String getJavascriptName(final File file) {
-		final String result = file.getName();
-		return result.substring(0, result.length() - 3);
+	/*
+	 * All files are submitted before the first one is written, so they are read concurrently, yet written in listing order.
+	 */
+	private void writeFunctions(final DesignDocumentWriter writer, final File[] files, final File root, final String prefix, final JsonArray manifest) throws IOException {
+		final List<Future<String>> functions = new ArrayList<>();
+		for (File file : files) {
+			functions.add(submit(new Callable<String>() {
+				@Override
+				public String call() throws IOException {
+					if (minifier != null) {
+						return readFileAsString(minify(file, prefix + getRelativeFilename(file, root), "application/javascript"));
+					}
+					final long read = System.nanoTime();
+					final String result = readFileAsString(file);
+					metrics.time("read", read);
+					return result;
+				}
+			}));
+		}
+		for (int i = 0; i < files.length; i++) {
+			writer.name(getJavascriptName(files[i])).value(get(functions.get(i)));
+			manifest.add(prefix + getRelativeFilename(files[i], root));
+		}
+		metrics.count("functions", files.length);
+	}
+
+	private File minify(final File file, final String name, final String contentType) throws IOException {
+		final long minify = System.nanoTime();
+		final File result = minifier.minify(file, name, contentType);
+		metrics.time("minify", minify);
+		metrics.count("minify.files", 1);
+		metrics.count("minify.bytes", file.length());
+		metrics.count("minify.minifiedBytes", result.length());
+		return result;
 	}
 
-	private String getRelativeFilename(final File file, final File root) throws IOException {
-		if (file.getAbsolutePath().startsWith(root.getAbsolutePath())) {
-			return file.getAbsolutePath().substring(root.getAbsolutePath().length() + 1).replace("\\", "/");
+	private AttachmentEncoder getEncoder() throws IOException {
+		AttachmentEncoder result = encoders.get();
+		if (result == null) {
+			result = new AttachmentEncoder();
+			encoders.set(result);
+		}
+		return result;
+	}
+
+	/*
+	 * Runs the task on the executor, or right away when packaging serially.
+	 */
+	private <T> Future<T> submit(final Callable<T> task) throws IOException {
+		if (executor != null) {
+			return executor.submit(task);
+		}
+		try {
+			return CompletableFuture.completedFuture(task.call());
+		} catch (IOException | RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException(e);
 		}
-		return null;
 	}
 
-	private void saveDesignDocument(final JsonObject designDocument, final File targetFolder) throws IOException {
-		FileUtils.writeStringToFile(new File(targetFolder.toString(), "couchapp.json"), designDocument.toString(), StandardCharsets.UTF_8);
+	/*
+	 * File.listFiles() returns files in no particular order, which would make the package differ between file systems.
+	 */
+	private static File[] sort(final File[] files) throws IOException {
+		if (files == null) throw new IOException("Unable to list files");
+		Arrays.sort(files, Comparator.comparing(File::getName));
+		return files;
+	}
+
+	private static <T> T get(final Future<T> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+			throw new IOException(e.getCause());
+		}
+	}
+
+	private static class Attachment {
+
+		private final File file;
+		private final String name;
+		private String contentType;
+		private String md5;
+		private boolean minified;
+		private long encodedLength = -1;
+
+		private Attachment(final File file, final String name) {
+			this.file = file;
+			this.name = name;
+		}
+
 	}
 
 }
@@ -0,0 +1,424 @@
+package org.apache.maven.plugin.couchapp;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.FileEntity;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.plugins.annotations.ResolutionScope;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * Watch a couchapp for changes, and push them to CouchDB as they happen
+ *
+ * After packaging and deploying once, changed attachments are uploaded on their own, and changed views, lists and
+ * shows are patched into the deployed design document. Any other change packages and deploys the couchapp again.
+ * Minification and gzip apply to pushed changes the same way as to packages. Only a single couchapp is watched, so
+ * sources are rejected.
+ */
+@Mojo(
+		name = "watch",
+		requiresProject = true,
+		threadSafe = true,
+		requiresDependencyResolution = ResolutionScope.RUNTIME)
+public class CouchAppWatchMojo extends CouchAppMojo {
+
+	private final Map<WatchKey, Path> keys = new HashMap<>();
+
+	private volatile boolean stopped;
+	private volatile WatchService watchService;
+
+	/*
+	 * The design document as deployed, with attachments as stubs.
+	 */
+	private JsonObject designDocument;
+	private String designDocumentId;
+
+	private Minifier minifier;
+	private AttachmentCompressor compressor;
+
+	/**
+	 * Milliseconds without further changes before a burst of changes gets pushed
+	 */
+	@Parameter(property = "watch.debounce", defaultValue = "300")
+	protected long debounce = 300;
+
+	/**
+	 * Gzip compressible attachments, as with the package goal. Pushed attachments are uploaded pre-encoded, and full
+	 * deploys go multipart to do the same.
+	 */
+	@Parameter(property = "package.gzip", defaultValue = "false")
+	protected boolean gzip;
+
+	/**
+	 * Deflate level for gzipped attachments, as with the package goal
+	 */
+	@Parameter(property = "package.gzipLevel", defaultValue = "6")
+	protected int gzipLevel = 6;
+
+	/**
+	 * Strip comments and whitespace from functions and attachments, as with the package goal
+	 */
+	@Parameter(property = "package.minify", defaultValue = "false")
+	protected boolean minify;
+
+	@Override
+	public void execute() throws MojoExecutionException, MojoFailureException {
+		try {
+
+			debug();
+
+			if (skip) {
+				getLog().info("Skipping.");
+				return;
+			}
+
+			if (sources != null && !sources.isEmpty()) {
+				throw new MojoFailureException("The watch goal watches a single couchapp, set source instead of sources");
+			}
+
+			initialize();
+
+			final File sourceFolder = checkSource();
+			if (sourceFolder == null) return;
+			checkCouchAppResource(sourceFolder);
+			final File targetFolder = checkTarget();
+			// Folders of their own, so the caches of the package goal keep describing its own output
+			minifier = minify ? new Minifier(new File(targetFolder, "couchapp-watch-minify")) : null;
+			compressor = gzip ? new AttachmentCompressor(new File(targetFolder, "couchapp-watch-gzip"), gzipLevel) : null;
+
+			try (WatchService service = FileSystems.getDefault().newWatchService()) {
+				watchService = service;
+				// Registered up front, so nothing changed during the first deploy goes unnoticed
+				register(sourceFolder.toPath());
+				redeploy(sourceFolder);
+				getLog().info("Watching " + sourceFolder + " for changes, press Ctrl+C to stop.");
+				while (!stopped) {
+					final Set<Path> changes = poll(sourceFolder.toPath());
+					if (changes.isEmpty()) continue;
+					try {
+						push(sourceFolder, changes);
+					} catch (IOException | MojoExecutionException e) {
+						getLog().error("Unable to push changes: " + e.getMessage());
+						// Start over from what is actually deployed
+						designDocument = null;
+					}
+				}
+			} catch (ClosedWatchServiceException e) {
+				// Stopped
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+
+		} catch (IOException e) {
+			throw new MojoExecutionException("Something went wrong.", e);
+		}
+	}
+
+	@Override
+	protected void debug() throws MojoExecutionException, MojoFailureException {
+		super.debug();
+		if (debug) {
+			getLog().debug("watch.debounce: " + debounce);
+			getLog().debug("package.gzip: " + gzip);
+			getLog().debug("package.gzipLevel: " + gzipLevel);
+			getLog().debug("package.minify: " + minify);
+		}
+	}
+
+	protected void setDebounce(final long debounce) {
+		this.debounce = debounce;
+	}
+
+	protected void setGzip(final boolean gzip) {
+		this.gzip = gzip;
+	}
+
+	protected void setMinify(final boolean minify) {
+		this.minify = minify;
+	}
+
+	/**
+	 * Ends the watch, from another thread
+	 */
+	protected void stop() throws IOException {
+		stopped = true;
+		final WatchService service = watchService;
+		if (service != null) service.close();
+	}
+
+	/*
+	 * Waits for a change, then collects further changes until none arrive for the debounce period.
+	 */
+	private Set<Path> poll(final Path root) throws InterruptedException, IOException {
+		final Set<Path> result = new LinkedHashSet<>();
+		WatchKey key = watchService.poll(1, TimeUnit.SECONDS);
+		while (key != null) {
+			final Path folder = keys.get(key);
+			for (WatchEvent<?> event : key.pollEvents()) {
+				if (event.kind() == OVERFLOW || folder == null) {
+					// Events got lost, only a full deploy is safe
+					result.add(root);
+					continue;
+				}
+				final Path path = folder.resolve((Path) event.context());
+				if (event.kind() == ENTRY_CREATE && Files.isDirectory(path)) {
+					register(path);
+				}
+				result.add(path);
+			}
+			if (!key.reset()) {
+				keys.remove(key);
+			}
+			key = watchService.poll(debounce, TimeUnit.MILLISECONDS);
+		}
+		return result;
+	}
+
+	private void register(final Path folder) throws IOException {
+		Files.walkFileTree(folder, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(final Path dir, final BasicFileAttributes attributes) throws IOException {
+				keys.put(dir.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/*
+	 * Attachments go first, so the design document stubs them once it gets saved. The deployed digest and the signatures
+	 * of pushed attachments no longer describe what is deployed, so the design document gets saved without them, or a
+	 * later deploy of the same package would take the couchapp as up to date.
+	 */
+	private void push(final File sourceFolder, final Set<Path> changes) throws IOException, MojoExecutionException, MojoFailureException {
+		final Path root = sourceFolder.toPath();
+		final Set<String> attachments = new LinkedHashSet<>();
+		final Set<String> functions = new LinkedHashSet<>();
+		boolean full = designDocument == null;
+		for (Path path : changes) {
+			final String name = root.relativize(path).toString().replace(File.separatorChar, '/');
+			if (isIgnored(name)) continue;
+			if (name.startsWith("_attachments/")) {
+				attachments.addAll(getAttachmentNames(sourceFolder, name.substring("_attachments/".length())));
+			} else if (isFunction(name)) {
+				functions.add(name);
+			} else {
+				full = true;
+			}
+		}
+		if (full) {
+			redeploy(sourceFolder);
+			return;
+		}
+		boolean invalidated = false;
+		for (String name : attachments) {
+			pushAttachment(new File(sourceFolder, "_attachments/" + name), name);
+			invalidated |= invalidate(name);
+		}
+		if (!functions.isEmpty()) {
+			for (String name : functions) {
+				patchFunction(new File(sourceFolder, name), name);
+			}
+			invalidate(null);
+			pushDesignDocument();
+		} else if (invalidated) {
+			pushDesignDocument();
+		}
+	}
+
+	/*
+	 * Drops the digest, and the signature of the given attachment if any.
+	 * Returns whether the design document changed.
+	 */
+	private boolean invalidate(final String attachment) {
+		final JsonObject couchapp = designDocument.getAsJsonObject("couchapp");
+		if (couchapp == null) return false;
+		boolean result = couchapp.remove("digest") != null;
+		final JsonObject signatures = couchapp.getAsJsonObject("signatures");
+		if (attachment != null && signatures != null) {
+			result |= signatures.remove(attachment) != null;
+		}
+		return result;
+	}
+
+	/*
+	 * A folder stands for all the files in it, or for all the attachments deployed from it once it is gone.
+	 */
+	private List<String> getAttachmentNames(final File sourceFolder, final String name) {
+		final File file = new File(sourceFolder, "_attachments/" + name);
+		final List<String> result = new ArrayList<>();
+		if (file.isFile()) {
+			result.add(name);
+		} else if (file.isDirectory()) {
+			addFiles(file, new File(sourceFolder, "_attachments"), result);
+		} else {
+			final JsonObject deployed = getAttachments();
+			for (Entry<String, JsonElement> entry : deployed.entrySet()) {
+				if (entry.getKey().equals(name) || entry.getKey().startsWith(name + "/")) result.add(entry.getKey());
+			}
+		}
+		return result;
+	}
+
+	private void addFiles(final File folder, final File root, final List<String> result) {
+		for (File file : folder.listFiles()) {
+			if (file.isDirectory()) {
+				addFiles(file, root, result);
+			} else if (!isIgnored(file.getName())) {
+				result.add(getRelativeFilename(file, root));
+			}
+		}
+	}
+
+	/*
+	 * Minified and gzipped copies are kept in the watch folders, gzipped ones are stored by CouchDB as they are.
+	 */
+	private void pushAttachment(final File file, final String name) throws IOException {
+		final long start = System.currentTimeMillis();
+		final CouchDbResponse response;
+		if (file.isFile()) {
+			final String contentType = getContentTypes().get(file);
+			final File minified = minifier != null && Minifier.isMinifiable(name, contentType) ? minifier.minify(file, "_attachments/" + name, contentType) : file;
+			final FileEntity entity;
+			if (compressor != null && ContentTypes.isCompressible(contentType) && compressor.compress(minified, name) >= 0) {
+				entity = new FileEntity(compressor.getFile(name), ContentType.create(contentType));
+				entity.setContentEncoding("gzip");
+			} else {
+				entity = new FileEntity(minified, ContentType.create(contentType));
+			}
+			response = getClient().updateAttachment(designDocumentId, name, getRevision(), entity);
+		} else if (getAttachments().has(name)) {
+			response = getClient().deleteAttachment(designDocumentId, name, getRevision());
+		} else {
+			return;
+		}
+		if (response.getStatus() != 200 && response.getStatus() != 201 && response.getStatus() != 202) {
+			throw new CouchDbException("Unable to save attachment " + name, response);
+		}
+		designDocument.addProperty("_rev", getStringFromJson(response.asJsonObject(), "rev"));
+		if (file.isFile()) {
+			final JsonObject stub = new JsonObject();
+			stub.addProperty("stub", true);
+			getAttachments().add(name, stub);
+			getLog().info("Uploaded " + name + " (" + file.length() + " bytes) in " + (System.currentTimeMillis() - start) + " ms");
+		} else {
+			getAttachments().remove(name);
+			getLog().info("Deleted " + name + " in " + (System.currentTimeMillis() - start) + " ms");
+		}
+	}
+
+	/*
+	 * Follows the layout rules of the package goal: views/<view>/<function>.js, lists/<list>.js and shows/<show>.js.
+	 */
+	private void patchFunction(final File file, final String name) throws IOException {
+		final String[] path = name.split("/");
+		JsonObject section = getSection(path[0]);
+		if (path.length == 3) {
+			if (!section.has(path[1])) section.add(path[1], new JsonObject());
+			section = section.getAsJsonObject(path[1]);
+		}
+		final String function = getJavascriptName(file);
+		if (file.isFile()) {
+			final String source = readFileAsString(file);
+			section.addProperty(function, minifier != null ? Minifier.minifyJavascript(source) : source);
+		} else {
+			section.remove(function);
+		}
+		getLog().info((file.isFile() ? "Updated " : "Removed ") + name);
+	}
+
+	private void pushDesignDocument() throws IOException {
+		final long start = System.currentTimeMillis();
+		final CouchDbResponse response = getClient().updateDesignDocument(designDocumentId, designDocument.toString());
+		if (response.getStatus() != 201 && response.getStatus() != 202) {
+			throw new CouchDbException("Unable to save design document", response);
+		}
+		designDocument.addProperty("_rev", getStringFromJson(response.asJsonObject(), "rev"));
+		getLog().info("Saved design document in " + (System.currentTimeMillis() - start) + " ms");
+	}
+
+	private void redeploy(final File sourceFolder) throws IOException, MojoExecutionException, MojoFailureException {
+		final CouchAppPackageMojo packager = new CouchAppPackageMojo();
+		configure(packager);
+		packager.setCache(true);
+		packager.setMinify(minify);
+		packager.setGzip(gzip);
+		packager.gzipLevel = gzipLevel;
+		packager.execute();
+
+		final CouchAppDeployMojo deployer = new CouchAppDeployMojo();
+		configure(deployer);
+		deployer.setDiff(true);
+		deployer.setMultipart(gzip);
+		deployer.setTargets(Collections.singletonList(getResourceUrl()));
+		deployer.execute();
+
+		designDocumentId = readFileAsString(new File(sourceFolder, "_id"));
+		final CouchDbResponse response = getClient().getDesignDocument(designDocumentId);
+		if (response.getStatus() != 200) {
+			throw new CouchDbException("Unable to retrieve design document!", response);
+		}
+		designDocument = response.asJsonObject();
+	}
+
+	private JsonObject getAttachments() {
+		return getSection("_attachments");
+	}
+
+	private JsonObject getSection(final String name) {
+		if (!designDocument.has(name)) designDocument.add(name, new JsonObject());
+		return designDocument.getAsJsonObject(name);
+	}
+
+	private String getRevision() {
+		return getStringFromJson(designDocument, "_rev");
+	}
+
+	private static boolean isFunction(final String name) {
+		if (!name.endsWith(".js")) return false;
+		final String[] path = name.split("/");
+		return path.length == 3 && path[0].equals("views")
+				|| path.length == 2 && (path[0].equals("lists") || path[0].equals("shows"));
+	}
+
+	/*
+	 * Hidden files and editor backups, including .couchapprc.
+	 */
+	private static boolean isIgnored(final String name) {
+		for (String segment : name.split("/")) {
+			if (segment.startsWith(".") || segment.endsWith("~") || segment.endsWith(".swp")) return true;
+		}
+		return false;
+	}
+
+}
@@ -0,0 +1,236 @@
+package org.apache.maven.plugin.couchapp;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+import org.apache.http.ContentTooLongException;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.nio.entity.ContentBufferEntity;
+import org.apache.http.nio.protocol.AbstractAsyncResponseConsumer;
+import org.apache.http.nio.util.HeapByteBufferAllocator;
+import org.apache.http.nio.util.SimpleInputBuffer;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Non-blocking variant of the CouchDbClient
+ *
+ * Requests are multiplexed over the pooled connections of the endpoint by a few I/O threads. No more requests are in
+ * flight than the pool has connections per route, further ones wait in a queue here rather than for a connection lease,
+ * so they are not subject to the request timeout. Request bodies are sent as they are, without gzip compression.
+ * Responses are parsed on the callback executor of CouchDbConnections, which also runs the stages depending on them.
+ */
+public class CouchDbAsyncClient {
+
+	private final CouchDbClient client;
+	private final CloseableHttpAsyncClient asyncClient;
+	private final CouchDbSettings settings;
+	private final Semaphore permits;
+	private final Queue<Runnable> pending = new ConcurrentLinkedQueue<>();
+
+	CouchDbAsyncClient(final CouchDbClient client, final CloseableHttpAsyncClient asyncClient, final CouchDbSettings settings) {
+		this.client = client;
+		this.asyncClient = asyncClient;
+		this.settings = settings;
+		this.permits = new Semaphore(Math.max(1, settings.getMaxConnectionsPerRoute()));
+	}
+
+	public String getCouchDb() {
+		return client.getCouchDb();
+	}
+
+	public CompletableFuture<CouchDbResponse> checkForDatabase() {
+		return performRequest(new HttpHead(client.getCouchDb()));
+	}
+
+	public CompletableFuture<CouchDbResponse> createDatabase() {
+		return performRequest(new HttpPut(client.getCouchDb()));
+	}
+
+	public CompletableFuture<CouchDbResponse> checkForDesignDocument(final String name) {
+		return performRequest(new HttpHead(client.getUrl(name)));
+	}
+
+	public CompletableFuture<CouchDbResponse> getDesignDocument(final String name) {
+		return performRequest(new HttpGet(client.getUrl(name)));
+	}
+
+	/**
+	 * @param rev The revision to update, passed as query parameter, or null when creating the design document
+	 * @param body Needs to support getContent(), as it is read by the I/O threads
+	 */
+	public CompletableFuture<CouchDbResponse> updateDesignDocument(final String name, final String rev, final HttpEntity body) {
+		final HttpPut request;
+		try {
+			request = new HttpPut(client.getUrl(name) + (rev == null ? "" : "?rev=" + URLEncoder.encode(rev, "UTF-8")));
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+		request.setEntity(body);
+		return performRequest(request);
+	}
+
+	/**
+	 * @param path Relative to the database, or to the server when starting with a slash
+	 */
+	public CompletableFuture<CouchDbResponse> get(final String path) {
+		return performRequest(new HttpGet(client.getUrl(path)));
+	}
+
+	/**
+	 * @param path Relative to the database, or to the server when starting with a slash
+	 * @param body Needs to support getContent(), as it is read by the I/O threads
+	 */
+	public CompletableFuture<CouchDbResponse> post(final String path, final HttpEntity body) {
+		final HttpPost request = new HttpPost(client.getUrl(path));
+		request.setEntity(body);
+		return performRequest(request);
+	}
+
+	/**
+	 * @return The number of requests waiting for one in flight to complete
+	 */
+	public int getPending() {
+		return pending.size();
+	}
+
+	private CompletableFuture<CouchDbResponse> performRequest(final HttpRequestBase request) {
+		final CompletableFuture<CouchDbResponse> result = new CompletableFuture<>();
+		final CouchDbClient.CountingEntity sent = client.countRequest(request);
+		client.prepareRequest(request, false);
+		pending.add(() -> execute(request, sent, result));
+		drain();
+		return result;
+	}
+
+	private void drain() {
+		while (!pending.isEmpty() && permits.tryAcquire()) {
+			final Runnable next = pending.poll();
+			if (next == null) {
+				permits.release();
+			} else {
+				next.run();
+			}
+		}
+	}
+
+	private void release() {
+		permits.release();
+		drain();
+	}
+
+	private void execute(final HttpRequestBase request, final CouchDbClient.CountingEntity sent, final CompletableFuture<CouchDbResponse> result) {
+		final long start = System.nanoTime();
+		try {
+			asyncClient.execute(HttpAsyncMethods.create(request), new LimitedResponseConsumer(settings.getMaxResponseSize()), new FutureCallback<HttpResponse>() {
+
+				@Override
+				public void completed(final HttpResponse response) {
+					release();
+					final CouchDbClient.CountingEntity received = client.countResponse(response);
+					try {
+						CouchDbConnections.getCallbackExecutor().execute(() -> {
+							try {
+								final CouchDbResponse parsed = client.readResponse(response);
+								client.record(request, start, sent, received);
+								result.complete(parsed);
+							} catch (IOException | RuntimeException e) {
+								client.record(request, start, sent, received);
+								result.completeExceptionally(e);
+							}
+						});
+					} catch (RejectedExecutionException e) {
+						result.completeExceptionally(e);
+					}
+				}
+
+				@Override
+				public void failed(final Exception e) {
+					release();
+					result.completeExceptionally(e);
+				}
+
+				@Override
+				public void cancelled() {
+					release();
+					result.cancel(false);
+				}
+
+			});
+		} catch (RuntimeException e) {
+			release();
+			result.completeExceptionally(e);
+		}
+	}
+
+	/*
+	 * The body is buffered before it gets parsed, so its size is checked up front where the server declares it, and
+	 * counted as it arrives, for chunked responses and servers that send more than they declare.
+	 */
+	private static class LimitedResponseConsumer extends AbstractAsyncResponseConsumer<HttpResponse> {
+
+		private final long limit;
+
+		private volatile HttpResponse response;
+		private volatile SimpleInputBuffer buffer;
+		private long received;
+
+		LimitedResponseConsumer(final long limit) {
+			this.limit = limit;
+		}
+
+		@Override
+		protected void onResponseReceived(final HttpResponse response) {
+			this.response = response;
+		}
+
+		@Override
+		protected void onEntityEnclosed(final HttpEntity entity, final ContentType contentType) throws IOException {
+			final long length = entity.getContentLength();
+			if (limit > 0 && length > limit) {
+				throw new ContentTooLongException("Response exceeds " + limit + " bytes, see couchdb.maxResponseSize");
+			}
+			buffer = new SimpleInputBuffer(length > 0 && length < Integer.MAX_VALUE ? (int) length : 4096, HeapByteBufferAllocator.INSTANCE);
+			response.setEntity(new ContentBufferEntity(entity, buffer));
+		}
+
+		@Override
+		protected void onContentReceived(final ContentDecoder decoder, final IOControl control) throws IOException {
+			final int read = buffer.consumeContent(decoder);
+			if (read > 0) received += read;
+			if (limit > 0 && received > limit) {
+				throw new ContentTooLongException("Response exceeds " + limit + " bytes, see couchdb.maxResponseSize");
+			}
+		}
+
+		@Override
+		protected HttpResponse buildResult(final HttpContext context) {
+			return response;
+		}
+
+		@Override
+		protected void releaseResources() {
+			response = null;
+			buffer = null;
+		}
+
+	}
+
+}
@@ -2,34 +2,56 @@ package org.apache.maven.plugin.couchapp;
 
 import static org.apache.maven.plugin.couchapp.CouchAppMojo.*;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.util.HashMap;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.ProxyInputStream;
+import org.apache.commons.io.output.ProxyOutputStream;
 import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
 import org.apache.http.HttpMessage;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.entity.GzipCompressingEntity;
 import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpHead;
 import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.HttpEntityWrapper;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
 import org.apache.maven.plugin.logging.Log;
 import org.apache.maven.plugin.logging.SystemStreamLog;
 
+import com.google.gson.JsonIOException;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+
 public class CouchDbClient {
 
 	private final Log log = new SystemStreamLog();
-	private final CloseableHttpClient client = HttpClients.createDefault();
+	private final CloseableHttpClient client;
+	private final CouchDbSettings settings;
+	private final RequestConfig requestConfig;
 
 	private boolean debug = false;
+	private Metrics metrics;
 
 	private String couchDbScheme;
 	private String couchDbHost;
@@ -42,18 +64,39 @@ public class CouchDbClient {
 	}
 
 	public CouchDbClient(final String resourceURI, final boolean debug) {
+		this(resourceURI, debug, new CouchDbSettings());
+	}
+
+	public CouchDbClient(final String resourceURI, final boolean debug, final CouchDbSettings settings) {
 		this.debug = debug;
+		this.settings = settings;
 		decomposeURI(resourceURI);
+		client = CouchDbConnections.get(couchDbScheme + "://" + couchDbHost + ":" + couchDbPort, settings);
+		// Pooled clients are shared, so whether to ask for compressed responses is decided per request
+		requestConfig = RequestConfig.custom()
+				.setConnectTimeout(settings.getConnectTimeout())
+				.setSocketTimeout(settings.getSocketTimeout())
+				.setConnectionRequestTimeout(settings.getRequestTimeout())
+				.setContentCompressionEnabled(settings.isGzip())
+				.build();
 	}
 
 	public String getCouchDb() {
 		return couchDbScheme + "://" + couchDbHost + ":" + couchDbPort + "/" + couchDb;
 	}
 
+	public String getDatabase() {
+		return couchDb;
+	}
+
 	public void setDebug(final boolean debug) {
 		this.debug = debug;
 	}
 
+	public void setMetrics(final Metrics metrics) {
+		this.metrics = metrics;
+	}
+
 	public CouchDbResponse checkForDatabase() throws IOException {
 		return performRequest(new HttpHead(getCouchDb()));
 	}
@@ -62,40 +105,172 @@ public class CouchDbClient {
 		return performRequest(new HttpPut(getCouchDb()));
 	}
 
+	public CouchDbResponse checkForDesignDocument(final String name) throws IOException {
+		return performRequest(new HttpHead(getCouchDb() + "/" + name));
+	}
+
 	public CouchDbResponse getDesignDocument(final String name) throws  IOException {
 		return performRequest(new HttpGet(getCouchDb() + "/" + name));
 	}
 
 	public CouchDbResponse updateDesignDocument(final String name, final String body) throws IOException {
 		final HttpPut request = new HttpPut(getCouchDb() + "/" + name);
-		request.setEntity(new StringEntity(body));
-		request.setHeader("Content-Type", "application/json");
+		request.setEntity(new StringEntity(body, ContentType.APPLICATION_JSON));
+		return performRequest(request);
+	}
+
+	public CouchDbResponse updateDesignDocument(final String name, final HttpEntity body) throws IOException {
+		return updateDesignDocument(name, null, body);
+	}
+
+	/**
+	 * @param rev The revision to update, passed as query parameter, or null when creating the design document
+	 */
+	public CouchDbResponse updateDesignDocument(final String name, final String rev, final HttpEntity body) throws IOException {
+		final HttpPut request = new HttpPut(getCouchDb() + "/" + name + (rev == null ? "" : "?rev=" + URLEncoder.encode(rev, "UTF-8")));
+		request.setEntity(body);
+		return performRequest(request);
+	}
+
+	/**
+	 * Replaces a single attachment, without touching the rest of the document
+	 *
+	 * @param name The attachment name, which may contain slashes
+	 */
+	public CouchDbResponse updateAttachment(final String id, final String name, final String rev, final HttpEntity body) throws IOException {
+		final HttpPut request = new HttpPut(getCouchDb() + "/" + id + "/" + encodePath(name) + "?rev=" + URLEncoder.encode(rev, "UTF-8"));
+		request.setEntity(body);
+		return performRequest(request);
+	}
+
+	public CouchDbResponse deleteAttachment(final String id, final String name, final String rev) throws IOException {
+		return performRequest(new HttpDelete(getCouchDb() + "/" + id + "/" + encodePath(name) + "?rev=" + URLEncoder.encode(rev, "UTF-8")));
+	}
+
+	/**
+	 * Copies a document on the server, attachments included
+	 *
+	 * @param rev The revision of the destination to overwrite, or null when creating it
+	 */
+	public CouchDbResponse copyDocument(final String id, final String destination, final String rev) throws IOException {
+		final HttpCopy request = new HttpCopy(getCouchDb() + "/" + id);
+		request.setHeader("Destination", destination + (rev == null ? "" : "?rev=" + URLEncoder.encode(rev, "UTF-8")));
 		return performRequest(request);
 	}
 
+	public CouchDbResponse deleteDocument(final String id, final String rev) throws IOException {
+		return performRequest(new HttpDelete(getCouchDb() + "/" + id + "?rev=" + URLEncoder.encode(rev, "UTF-8")));
+	}
+
+	/**
+	 * @param path Relative to the database, or to the server when starting with a slash
+	 */
+	public CouchDbResponse get(final String path) throws IOException {
+		return performRequest(new HttpGet(getUrl(path)));
+	}
+
+	/**
+	 * @return A non-blocking client for the same database, sharing these settings
+	 */
+	public CouchDbAsyncClient async() {
+		return new CouchDbAsyncClient(this, CouchDbConnections.getAsync(couchDbScheme + "://" + couchDbHost + ":" + couchDbPort, settings), settings);
+	}
+
+	private static String encodePath(final String path) throws IOException {
+		final StringBuilder result = new StringBuilder();
+		for (String segment : path.split("/")) {
+			if (result.length() > 0) result.append('/');
+			result.append(URLEncoder.encode(segment, "UTF-8").replace("+", "%20"));
+		}
+		return result.toString();
+	}
+
+	String getUrl(final String path) {
+		return path.startsWith("/") ? couchDbScheme + "://" + couchDbHost + ":" + couchDbPort + path : getCouchDb() + "/" + path;
+	}
+
 	private CouchDbResponse performRequest(final HttpRequestBase request) throws IOException {
-		if (debug) log.debug("Request: " + request.getMethod() + " " + request.getURI());
-		final CouchDbResponse result = new CouchDbResponse();
-		request.addHeader("Accept", "application/json");
-		request.addHeader("User-Agent", "couchapp/1.0.0-SNAPSHOT");
-		request.addHeader("Authorization", "Basic " + couchDbAuth);
-		if (debug) log.debug("Headers: " + getJsonFromMap(readHeaders(request)));
+		final CountingEntity sent = countRequest(request);
+		prepareRequest(request, true);
+		final long start = System.nanoTime();
 		final CloseableHttpResponse response = client.execute(request);
+		final CountingEntity received = countResponse(response);
 		try {
-			result.setStatus(response.getStatusLine().getStatusCode());
-			result.setReason(response.getStatusLine().getReasonPhrase());
-			if (debug) log.debug("Got response: " + result.getStatus() + " " + result.getReason());
-			if (response.getEntity() != null) {
-				result.setBody(readResponse(response.getEntity().getContent()));
-			}
-			result.setHeaders(readHeaders(response));
-			if (debug) log.debug("Headers: " + getJsonFromMap(result.getHeaders()));
+			return readResponse(response);
 		} finally {
 			response.close();
+			record(request, start, sent, received);
 		}
+	}
+
+	/*
+	 * Counted as the body gets written, before compression, so throughput reflects the payload rather than the wire,
+	 * also when its length is not known up front.
+	 */
+	CountingEntity countRequest(final HttpRequestBase request) {
+		if (!(request instanceof HttpEntityEnclosingRequest) || ((HttpEntityEnclosingRequest) request).getEntity() == null) return null;
+		final CountingEntity result = new CountingEntity(((HttpEntityEnclosingRequest) request).getEntity());
+		((HttpEntityEnclosingRequest) request).setEntity(result);
 		return result;
 	}
 
+	/*
+	 * Counted as the body gets read, after decompression, so chunked responses count as well.
+	 */
+	CountingEntity countResponse(final HttpResponse response) {
+		if (response.getEntity() == null) return null;
+		final CountingEntity result = new CountingEntity(response.getEntity());
+		response.setEntity(result);
+		return result;
+	}
+
+	void record(final HttpRequestBase request, final long start, final CountingEntity sent, final CountingEntity received) {
+		if (metrics == null) return;
+		metrics.request(request.getMethod(), start, sent == null ? 0 : sent.getCount(), received == null ? 0 : received.getCount());
+	}
+
+	void prepareRequest(final HttpRequestBase request, final boolean compress) {
+		if (debug) log.debug("Request: " + request.getMethod() + " " + request.getURI());
+		request.addHeader("Accept", "application/json");
+		request.addHeader("User-Agent", "couchapp/1.0.0-SNAPSHOT");
+		if (couchDbAuth != null) request.addHeader("Authorization", "Basic " + couchDbAuth);
+		request.setConfig(requestConfig);
+		if (compress && request instanceof HttpEntityEnclosingRequest) {
+			compressEntity((HttpEntityEnclosingRequest) request);
+		}
+		if (debug) log.debug("Headers: " + getJsonFromMap(readHeaders(request)));
+	}
+
+	CouchDbResponse readResponse(final HttpResponse response) throws IOException {
+		final CouchDbResponse result = new CouchDbResponse();
+		result.setStatus(response.getStatusLine().getStatusCode());
+		result.setReason(response.getStatusLine().getReasonPhrase());
+		if (debug) log.debug("Got response: " + result.getStatus() + " " + result.getReason());
+		result.setHeaders(readHeaders(response));
+		if (debug) log.debug("Headers: " + getJsonFromMap(result.getHeaders()));
+		final HttpEntity entity = response.getEntity();
+		if (entity != null) {
+			readResponse(entity, result);
+			// Reading to the end hands the connection back to the pool
+			EntityUtils.consume(entity);
+		}
+		return result;
+	}
+
+	/*
+	 * Only JSON bodies are compressed, as CouchDB decodes those, and small bodies are not worth the effort.
+	 */
+	private void compressEntity(final HttpEntityEnclosingRequest request) {
+		final HttpEntity entity = request.getEntity();
+		if (!settings.isGzip() || entity == null || entity.getContentEncoding() != null) return;
+		final Header contentType = request.containsHeader("Content-Type") ? request.getFirstHeader("Content-Type") : entity.getContentType();
+		if (contentType == null || !contentType.getValue().startsWith("application/json")) return;
+		final long length = entity.getContentLength();
+		if (length >= 0 && length < settings.getGzipThreshold()) return;
+		request.setEntity(new GzipCompressingEntity(entity));
+		if (debug) log.debug("Compressing request body of " + length + " bytes");
+	}
+
 	/*
 	 * https://stackoverflow.com/a/20940906/553317
 	 */
@@ -105,7 +280,8 @@ public class CouchDbClient {
 			couchDbScheme = result.getScheme();
 			couchDbHost = result.getHost();
 			couchDbPort = result.getPort();
-			couchDbAuth = base64encode(result.getUserInfo());
+			// Without credentials, such as for an admin party or a proxy that adds them
+			couchDbAuth = result.getUserInfo() == null ? null : base64encode(result.getUserInfo());
 			couchDb = result.getPath();
 			if (couchDb.startsWith("/")) couchDb = couchDb.substring(1);
 		} catch (URISyntaxException e) {
@@ -114,25 +290,110 @@ public class CouchDbClient {
 	}
 
 	private Map<String, String> readHeaders(final HttpMessage message) {
-		final Map<String, String> result = new HashMap<>();
+		final Map<String, String> result = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
 		for (Header header : message.getAllHeaders()) {
 			result.put(header.getName(), header.getValue());
 		}
 		return result;
 	}
 
-	private String readResponse(final InputStream in) throws IOException {
-		final StringBuffer result = new StringBuffer();
-		final BufferedReader reader = new BufferedReader(new InputStreamReader(in));
-		try {
-			String line;
-			while ((line = reader.readLine()) != null) {
-				result.append(line);
+	/*
+	 * JSON is parsed while it arrives, so the body never exists as text as well. Either way, no more than
+	 * maxResponseSize bytes are read.
+	 */
+	private void readResponse(final HttpEntity entity, final CouchDbResponse result) throws IOException {
+		final ContentType contentType = ContentType.get(entity);
+		final Charset charset = contentType == null || contentType.getCharset() == null ? StandardCharsets.UTF_8 : contentType.getCharset();
+		final InputStream in = new LimitedInputStream(entity.getContent(), settings.getMaxResponseSize());
+		if (contentType != null && contentType.getMimeType().endsWith("json")) {
+			try {
+				result.setJson(CouchDbResponse.parse(new JsonReader(new InputStreamReader(in, charset))));
+				return;
+			} catch (JsonIOException e) {
+				throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e);
+			} catch (JsonParseException e) {
+				// Not JSON after all, the rest of the body is of no use
+				if (debug) log.debug("Unable to parse response: " + e.getMessage());
+				return;
 			}
-		} finally {
-			reader.close();
 		}
-		return result.toString();
+		result.setBody(IOUtils.toString(in, charset));
+	}
+
+	/*
+	 * Fails instead of truncating, as half a response is worse than none.
+	 */
+	private static class LimitedInputStream extends ProxyInputStream {
+
+		private final long limit;
+		private long count;
+
+		LimitedInputStream(final InputStream in, final long limit) {
+			super(in);
+			this.limit = limit;
+		}
+
+		@Override
+		protected void afterRead(final int n) throws IOException {
+			if (n > 0) count += n;
+			if (limit > 0 && count > limit) {
+				throw new IOException("Response exceeds " + limit + " bytes, see couchdb.maxResponseSize");
+			}
+		}
+
+	}
+
+	/*
+	 * Counts the bytes that actually pass, whichever way the body is consumed.
+	 */
+	static class CountingEntity extends HttpEntityWrapper {
+
+		private final AtomicLong count = new AtomicLong();
+
+		CountingEntity(final HttpEntity entity) {
+			super(entity);
+		}
+
+		long getCount() {
+			return count.get();
+		}
+
+		@Override
+		public InputStream getContent() throws IOException {
+			return new ProxyInputStream(super.getContent()) {
+				@Override
+				protected void afterRead(final int n) {
+					if (n > 0) count.addAndGet(n);
+				}
+			};
+		}
+
+		@Override
+		public void writeTo(final OutputStream out) throws IOException {
+			super.writeTo(new ProxyOutputStream(out) {
+				@Override
+				protected void afterWrite(final int n) {
+					count.addAndGet(n);
+				}
+			});
+		}
+
+	}
+
+	/*
+	 * COPY is CouchDB specific, HttpClient has no request class for it.
+	 */
+	private static class HttpCopy extends HttpRequestBase {
+
+		HttpCopy(final String uri) {
+			setURI(URI.create(uri));
+		}
+
+		@Override
+		public String getMethod() {
+			return "COPY";
+		}
+
 	}
 
 }
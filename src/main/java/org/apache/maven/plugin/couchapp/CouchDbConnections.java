@@ -0,0 +1,130 @@
+package org.apache.maven.plugin.couchapp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+
+/**
+ * Registry of pooled HTTP clients, shared by all mojos of a build, one per CouchDB endpoint and pool size
+ *
+ * Maven keeps the plugin class realm for the whole reactor, so modules deploying to the same CouchDB reuse
+ * kept-alive connections, also when built in parallel. Timeouts are set per request, so only the pool sizes need a
+ * pool of their own. The pools are closed when the build ends, see {@link CouchDbLifecycleParticipant}, or else when
+ * the JVM exits.
+ */
+public final class CouchDbConnections {
+
+	private static final Map<String, CloseableHttpClient> clients = new ConcurrentHashMap<>();
+	private static final Map<String, CloseableHttpAsyncClient> asyncClients = new ConcurrentHashMap<>();
+	private static final ExecutorService callbacks = Executors.newCachedThreadPool(daemon("couchdb-callback"));
+
+	static {
+		Runtime.getRuntime().addShutdownHook(new Thread(CouchDbConnections::closeAll, "couchdb-connections-shutdown"));
+	}
+
+	private CouchDbConnections() {
+	}
+
+	/**
+	 * @param endpoint The scheme, host and port of the CouchDB server
+	 * @param settings The pool sizes pick the client, the timeouts only apply when it is created
+	 */
+	public static CloseableHttpClient get(final String endpoint, final CouchDbSettings settings) {
+		return clients.computeIfAbsent(key(endpoint, settings), key -> create(settings));
+	}
+
+	/**
+	 * @param endpoint The scheme, host and port of the CouchDB server
+	 * @param settings The pool sizes pick the client, the timeouts only apply when it is created
+	 * @return A started client, its I/O reactor threads are shared by all requests to the endpoint
+	 */
+	public static CloseableHttpAsyncClient getAsync(final String endpoint, final CouchDbSettings settings) {
+		return asyncClients.computeIfAbsent(key(endpoint, settings), key -> createAsync(settings));
+	}
+
+	/**
+	 * @return The threads that parse async responses and run what depends on them, so the I/O reactor threads only
+	 *         move bytes. Idle threads go away on their own.
+	 */
+	public static ExecutorService getCallbackExecutor() {
+		return callbacks;
+	}
+
+	public static void closeAll() {
+		close(clients);
+		close(asyncClients);
+	}
+
+	private static String key(final String endpoint, final CouchDbSettings settings) {
+		return endpoint + "#" + settings.getMaxConnections() + "/" + settings.getMaxConnectionsPerRoute();
+	}
+
+	private static void close(final Map<String, ? extends Closeable> clients) {
+		for (String endpoint : clients.keySet()) {
+			final Closeable client = clients.remove(endpoint);
+			if (client != null) {
+				try {
+					client.close();
+				} catch (IOException e) {
+					// Nothing left to do at this point
+				}
+			}
+		}
+	}
+
+	private static CloseableHttpClient create(final CouchDbSettings settings) {
+		final PoolingHttpClientConnectionManager manager = new PoolingHttpClientConnectionManager(60, TimeUnit.SECONDS);
+		manager.setMaxTotal(settings.getMaxConnections());
+		manager.setDefaultMaxPerRoute(settings.getMaxConnectionsPerRoute());
+		manager.setValidateAfterInactivity(2000);
+		return HttpClients.custom()
+				.setConnectionManager(manager)
+				.setDefaultRequestConfig(RequestConfig.custom()
+						.setConnectTimeout(settings.getConnectTimeout())
+						.setSocketTimeout(settings.getSocketTimeout())
+						.setConnectionRequestTimeout(settings.getRequestTimeout())
+						.build())
+				.evictExpiredConnections()
+				.evictIdleConnections(30, TimeUnit.SECONDS)
+				.build();
+	}
+
+	private static CloseableHttpAsyncClient createAsync(final CouchDbSettings settings) {
+		final CloseableHttpAsyncClient result = HttpAsyncClients.custom()
+				.setMaxConnTotal(settings.getMaxConnections())
+				.setMaxConnPerRoute(settings.getMaxConnectionsPerRoute())
+				.setDefaultRequestConfig(RequestConfig.custom()
+						.setConnectTimeout(settings.getConnectTimeout())
+						.setSocketTimeout(settings.getSocketTimeout())
+						.setConnectionRequestTimeout(settings.getRequestTimeout())
+						.build())
+				.setThreadFactory(daemon("couchdb-io"))
+				.build();
+		result.start();
+		return result;
+	}
+
+	/*
+	 * Daemon threads, so a forgotten client never keeps the build from ending.
+	 */
+	private static ThreadFactory daemon(final String name) {
+		return runnable -> {
+			final Thread thread = new Thread(runnable, name);
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+
+}
@@ -0,0 +1,24 @@
+package org.apache.maven.plugin.couchapp;
+
+import java.io.IOException;
+
+/**
+ * An unexpected response from CouchDB
+ *
+ */
+public class CouchDbException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final int status;
+
+	public CouchDbException(final String message, final CouchDbResponse response) {
+		super(message + " (" + response.getStatus() + " " + response.getReason() + ")");
+		this.status = response.getStatus();
+	}
+
+	public int getStatus() {
+		return status;
+	}
+
+}
@@ -0,0 +1,127 @@
+package org.apache.maven.plugin.couchapp;
+
+import org.apache.maven.AbstractMavenLifecycleParticipant;
+import org.apache.maven.execution.ExecutionEvent;
+import org.apache.maven.execution.ExecutionListener;
+import org.apache.maven.execution.MavenExecutionRequest;
+import org.apache.maven.execution.MavenSession;
+
+/**
+ * Closes the pooled CouchDB connections when the build ends
+ *
+ * Registered in META-INF/plexus/components.xml, so it takes part when the plugin is declared with
+ * &lt;extensions&gt;true&lt;/extensions&gt;, as the couchapp packaging requires anyway. Maven 3.0 has no afterSessionEnd
+ * yet, so the end of the session is caught by the execution listener instead. Without the extension, the pools are
+ * closed when the JVM exits.
+ */
+public class CouchDbLifecycleParticipant extends AbstractMavenLifecycleParticipant {
+
+	@Override
+	public void afterSessionStart(final MavenSession session) {
+		final MavenExecutionRequest request = session.getRequest();
+		request.setExecutionListener(new ClosingListener(request.getExecutionListener()));
+	}
+
+	/*
+	 * Passes every event on, and closes the pools once the session has ended.
+	 */
+	static class ClosingListener implements ExecutionListener {
+
+		private final ExecutionListener delegate;
+
+		ClosingListener(final ExecutionListener delegate) {
+			this.delegate = delegate;
+		}
+
+		@Override
+		public void sessionEnded(final ExecutionEvent event) {
+			try {
+				if (delegate != null) delegate.sessionEnded(event);
+			} finally {
+				CouchDbConnections.closeAll();
+			}
+		}
+
+		@Override
+		public void projectDiscoveryStarted(final ExecutionEvent event) {
+			if (delegate != null) delegate.projectDiscoveryStarted(event);
+		}
+
+		@Override
+		public void sessionStarted(final ExecutionEvent event) {
+			if (delegate != null) delegate.sessionStarted(event);
+		}
+
+		@Override
+		public void projectSkipped(final ExecutionEvent event) {
+			if (delegate != null) delegate.projectSkipped(event);
+		}
+
+		@Override
+		public void projectStarted(final ExecutionEvent event) {
+			if (delegate != null) delegate.projectStarted(event);
+		}
+
+		@Override
+		public void projectSucceeded(final ExecutionEvent event) {
+			if (delegate != null) delegate.projectSucceeded(event);
+		}
+
+		@Override
+		public void projectFailed(final ExecutionEvent event) {
+			if (delegate != null) delegate.projectFailed(event);
+		}
+
+		@Override
+		public void mojoSkipped(final ExecutionEvent event) {
+			if (delegate != null) delegate.mojoSkipped(event);
+		}
+
+		@Override
+		public void mojoStarted(final ExecutionEvent event) {
+			if (delegate != null) delegate.mojoStarted(event);
+		}
+
+		@Override
+		public void mojoSucceeded(final ExecutionEvent event) {
+			if (delegate != null) delegate.mojoSucceeded(event);
+		}
+
+		@Override
+		public void mojoFailed(final ExecutionEvent event) {
+			if (delegate != null) delegate.mojoFailed(event);
+		}
+
+		@Override
+		public void forkStarted(final ExecutionEvent event) {
+			if (delegate != null) delegate.forkStarted(event);
+		}
+
+		@Override
+		public void forkSucceeded(final ExecutionEvent event) {
+			if (delegate != null) delegate.forkSucceeded(event);
+		}
+
+		@Override
+		public void forkFailed(final ExecutionEvent event) {
+			if (delegate != null) delegate.forkFailed(event);
+		}
+
+		@Override
+		public void forkedProjectStarted(final ExecutionEvent event) {
+			if (delegate != null) delegate.forkedProjectStarted(event);
+		}
+
+		@Override
+		public void forkedProjectSucceeded(final ExecutionEvent event) {
+			if (delegate != null) delegate.forkedProjectSucceeded(event);
+		}
+
+		@Override
+		public void forkedProjectFailed(final ExecutionEvent event) {
+			if (delegate != null) delegate.forkedProjectFailed(event);
+		}
+
+	}
+
+}
@@ -1,41 +1,56 @@
 package org.apache.maven.plugin.couchapp;
 
+import java.io.StringReader;
 import java.util.Map;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
 import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
-import com.google.gson.JsonSyntaxException;
-
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+
+/**
+ * A response from CouchDB
+ *
+ * JSON bodies are parsed once, straight from the connection, other bodies are kept as text.
+ */
 public class CouchDbResponse {
 
-	private static final Gson GSON = new GsonBuilder().disableHtmlEscaping().setPrettyPrinting().create();
-
 	private String body;
+	private JsonElement json;
 	private Map<String, String> headers;
 	private String reason;
 	private int status;
 
 	public final JsonArray asJsonArray() {
-		if (body == null || body.trim().isEmpty()) return null;
-		try {
-			return GSON.fromJson(body, JsonArray.class);
-		} catch (JsonSyntaxException e) {
-			return null;
-		}
+		final JsonElement result = asJson();
+		return result != null && result.isJsonArray() ? result.getAsJsonArray() : null;
 	}
 
 	public final JsonObject asJsonObject() {
-		if (body == null || body.trim().isEmpty()) return null;
-		try {
-			return GSON.fromJson(body, JsonObject.class);
-		} catch (JsonSyntaxException e) {
-			return null;
+		final JsonElement result = asJson();
+		return result != null && result.isJsonObject() ? result.getAsJsonObject() : null;
+	}
+
+	/**
+	 * @return The parsed body, or null when there is none, or it is not JSON
+	 */
+	public synchronized JsonElement asJson() {
+		if (json == null && body != null && !body.trim().isEmpty()) {
+			try {
+				json = parse(new JsonReader(new StringReader(body)));
+			} catch (JsonParseException e) {
+				return null;
+			}
 		}
+		return json;
 	}
 
-	public String getBody() {
+	public synchronized String getBody() {
+		if (body == null && json != null) {
+			body = json.toString();
+		}
 		return body;
 	}
 
@@ -51,14 +66,20 @@ public class CouchDbResponse {
 		return status;
 	}
 
-	public void setBody(String body) {
+	public synchronized void setBody(String body) {
 		this.body = body;
+		this.json = null;
 	}
 
 	public void setHeaders(Map<String, String> headers) {
 		this.headers = headers;
 	}
 
+	public synchronized void setJson(JsonElement json) {
+		this.json = json;
+		this.body = null;
+	}
+
 	public void setReason(String reason) {
 		this.reason = reason;
 	}
@@ -67,4 +88,9 @@ public class CouchDbResponse {
 		this.status = status;
 	}
 
+	static JsonElement parse(final JsonReader reader) {
+		final JsonElement result = new JsonParser().parse(reader);
+		return result.isJsonNull() ? null : result;
+	}
+
 }
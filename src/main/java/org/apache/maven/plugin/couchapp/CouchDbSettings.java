@@ -0,0 +1,82 @@
+package org.apache.maven.plugin.couchapp;
+
+/**
+ * Connection settings shared by every CouchDbClient talking to the same endpoint
+ *
+ */
+public class CouchDbSettings {
+
+	private int maxConnections = 20;
+	private int maxConnectionsPerRoute = 8;
+	private int connectTimeout = 10000;
+	private int socketTimeout = 60000;
+	private int requestTimeout = 30000;
+	private boolean gzip = false;
+	private int gzipThreshold = 1024;
+	private long maxResponseSize = 16 * 1024 * 1024;
+
+	public int getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	public int getGzipThreshold() {
+		return gzipThreshold;
+	}
+
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	public long getMaxResponseSize() {
+		return maxResponseSize;
+	}
+
+	public int getMaxConnectionsPerRoute() {
+		return maxConnectionsPerRoute;
+	}
+
+	public int getRequestTimeout() {
+		return requestTimeout;
+	}
+
+	public int getSocketTimeout() {
+		return socketTimeout;
+	}
+
+	public boolean isGzip() {
+		return gzip;
+	}
+
+	public void setConnectTimeout(int connectTimeout) {
+		this.connectTimeout = connectTimeout;
+	}
+
+	public void setGzip(boolean gzip) {
+		this.gzip = gzip;
+	}
+
+	public void setGzipThreshold(int gzipThreshold) {
+		this.gzipThreshold = gzipThreshold;
+	}
+
+	public void setMaxConnections(int maxConnections) {
+		this.maxConnections = maxConnections;
+	}
+
+	public void setMaxResponseSize(long maxResponseSize) {
+		this.maxResponseSize = maxResponseSize;
+	}
+
+	public void setMaxConnectionsPerRoute(int maxConnectionsPerRoute) {
+		this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+	}
+
+	public void setRequestTimeout(int requestTimeout) {
+		this.requestTimeout = requestTimeout;
+	}
+
+	public void setSocketTimeout(int socketTimeout) {
+		this.socketTimeout = socketTimeout;
+	}
+
+}
@@ -0,0 +1,89 @@
+package org.apache.maven.plugin.couchapp;
+
+import static org.apache.maven.plugin.couchapp.CouchAppMojo.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.commons.io.FileUtils;
+
+import com.google.gson.JsonObject;
+
+/**
+ * Remembers which digest and attachment signatures were deployed as which revision, per design document URL
+ *
+ * A HEAD request on the design document then suffices to tell whether it still holds what was deployed last,
+ * and which of its attachments can be kept. Likewise for seed documents, per database URL, the revision and MD5 of
+ * each, so their revisions suffice to tell which ones are unchanged.
+ */
+public class DeployHistory {
+
+	private final File file;
+	private JsonObject history;
+
+	public DeployHistory(final File file) {
+		this.file = file;
+	}
+
+	/**
+	 * @return The revision last deployed to the given URL, or null when unknown
+	 */
+	public synchronized String getRevision(final String url) throws IOException {
+		final JsonObject entry = getHistory().getAsJsonObject(url);
+		return entry == null ? null : getString(entry, "rev");
+	}
+
+	/**
+	 * @return The digest deployed as the given revision, or null when unknown
+	 */
+	public synchronized String getDigest(final String url, final String rev) throws IOException {
+		final JsonObject entry = getHistory().getAsJsonObject(url);
+		return entry != null && rev != null && rev.equals(getString(entry, "rev")) ? getString(entry, "digest") : null;
+	}
+
+	/**
+	 * @return The attachment signatures deployed as the given revision, or null when unknown
+	 */
+	public synchronized JsonObject getSignatures(final String url, final String rev) throws IOException {
+		final JsonObject entry = getHistory().getAsJsonObject(url);
+		return entry != null && rev != null && rev.equals(getString(entry, "rev")) ? entry.getAsJsonObject("signatures") : null;
+	}
+
+	public synchronized void put(final String url, final String rev, final String digest, final JsonObject signatures) throws IOException {
+		final JsonObject entry = new JsonObject();
+		entry.addProperty("rev", rev);
+		entry.addProperty("digest", digest);
+		if (signatures != null) entry.add("signatures", signatures);
+		getHistory().add(url, entry);
+		FileUtils.writeStringToFile(file, prettyPrint(history), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @return Revision and MD5 of the seed documents deployed to the given database, keyed on their id, or null
+	 */
+	public synchronized JsonObject getDocuments(final String url) throws IOException {
+		final JsonObject entry = getHistory().getAsJsonObject(url);
+		return entry == null ? null : entry.getAsJsonObject("documents");
+	}
+
+	public synchronized void putDocuments(final String url, final JsonObject documents) throws IOException {
+		final JsonObject entry = new JsonObject();
+		entry.add("documents", documents);
+		getHistory().add(url, entry);
+		FileUtils.writeStringToFile(file, prettyPrint(history), StandardCharsets.UTF_8);
+	}
+
+	private JsonObject getHistory() throws IOException {
+		if (history == null) {
+			history = file.isFile() ? readFileAsJsonObject(file) : null;
+			if (history == null) history = new JsonObject();
+		}
+		return history;
+	}
+
+	private static String getString(final JsonObject object, final String name) {
+		return object.has(name) && !object.get(name).isJsonNull() ? object.get(name).getAsString() : null;
+	}
+
+}
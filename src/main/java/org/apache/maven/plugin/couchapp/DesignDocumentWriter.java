@@ -0,0 +1,136 @@
+package org.apache.maven.plugin.couchapp;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import javax.xml.bind.DatatypeConverter;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * A JsonWriter that can stream attachment data without materializing it as a string
+ *
+ * Everything written is also fed into a digest, except for attachment data, which is represented by its signature
+ * instead. The digest thereby identifies the content of the design document, without hashing it twice.
+ */
+public class DesignDocumentWriter extends JsonWriter {
+
+	private final DigestWriter out;
+
+	public DesignDocumentWriter(final Writer out) throws IOException {
+		this(new DigestWriter(out));
+	}
+
+	private DesignDocumentWriter(final DigestWriter out) {
+		super(out);
+		this.out = out;
+	}
+
+	/**
+	 * Writes the base64 encoded contents of a file as a string value
+	 *
+	 * @return The MD5 signature of the file
+	 */
+	public String attachmentValue(final File file, final AttachmentEncoder encoder) throws IOException {
+		/*
+		 * JsonWriter writes through to the underlying writer, so opening the string as a raw value keeps
+		 * its separator bookkeeping intact, while base64 never needs escaping.
+		 */
+		jsonValue("\"");
+		final String result = encoder.encode(file, out.raw);
+		out.raw.write('"');
+		out.update(result);
+		return result;
+	}
+
+	/**
+	 * Copies an already base64 encoded payload as a string value
+	 *
+	 * @param md5 The signature of the payload
+	 */
+	public void payloadValue(final File payload, final String md5) throws IOException {
+		jsonValue("\"");
+		final Reader in = new InputStreamReader(new FileInputStream(payload), StandardCharsets.US_ASCII);
+		try {
+			IOUtils.copyLarge(in, out.raw);
+		} finally {
+			in.close();
+		}
+		out.raw.write('"');
+		out.update(md5);
+	}
+
+	/**
+	 * Includes content in the digest, without writing it
+	 */
+	public void digest(final String value) throws IOException {
+		out.update(value);
+	}
+
+	/**
+	 * @return The lowercase hexadecimal digest of everything written so far
+	 */
+	public String getDigest() throws IOException {
+		return out.getDigest();
+	}
+
+	private static class DigestWriter extends FilterWriter {
+
+		private final Writer raw;
+		private final MessageDigest digest;
+		private final Writer digestWriter;
+
+		private DigestWriter(final Writer out) throws IOException {
+			super(out);
+			this.raw = out;
+			try {
+				this.digest = MessageDigest.getInstance("MD5");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IOException(e);
+			}
+			this.digestWriter = new OutputStreamWriter(new DigestOutputStream(new NullOutputStream(), digest), StandardCharsets.UTF_8);
+		}
+
+		@Override
+		public void write(final int c) throws IOException {
+			super.write(c);
+			digestWriter.write(c);
+		}
+
+		@Override
+		public void write(final char[] cbuf, final int off, final int len) throws IOException {
+			super.write(cbuf, off, len);
+			digestWriter.write(cbuf, off, len);
+		}
+
+		@Override
+		public void write(final String str, final int off, final int len) throws IOException {
+			super.write(str, off, len);
+			digestWriter.write(str, off, len);
+		}
+
+		private void update(final String value) throws IOException {
+			digestWriter.write(value);
+		}
+
+		private String getDigest() throws IOException {
+			digestWriter.flush();
+			return DatatypeConverter.printHexBinary(digest.digest()).toLowerCase();
+		}
+
+	}
+
+}
@@ -0,0 +1,228 @@
+package org.apache.maven.plugin.couchapp;
+
+import static org.apache.maven.plugin.couchapp.CouchAppMojo.md5;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+
+/**
+ * Loads the seed documents of a couchapp into its database, in batches through _bulk_docs
+ *
+ * The packaged documents are read one batch at a time, and several batches are in flight at once. Each batch first
+ * looks up the revisions of its documents with a single _all_docs request, without their bodies, so the response stays
+ * small whatever the size of the documents. A document is unchanged when its revision is the one the history says was
+ * saved from the same content, other documents are saved on top of the revision they replace. Without history, such as
+ * on a first deploy or after a clean, existing documents are saved once more.
+ */
+public class DocumentLoader {
+
+	private final CouchDbClient client;
+	private final int batchSize;
+	private final int concurrency;
+
+	public DocumentLoader(final CouchDbClient client, final int batchSize, final int concurrency) {
+		this.client = client;
+		this.batchSize = Math.max(1, batchSize);
+		this.concurrency = Math.max(1, concurrency);
+	}
+
+	/**
+	 * @param file The packaged documents, a JSON array
+	 * @param history Revision and MD5 of the documents saved before, keyed on their id, as in Result.getHistory()
+	 */
+	public Result load(final File file, final JsonObject history) throws IOException {
+		final CouchDbAsyncClient async = client.async();
+		final Result result = new Result(history);
+		final Semaphore permits = new Semaphore(concurrency);
+		final AtomicReference<Throwable> failure = new AtomicReference<>();
+		final List<CompletableFuture<Void>> batches = new ArrayList<>();
+		final JsonParser parser = new JsonParser();
+		try (Reader in = new InputStreamReader(Files.newInputStream(file.toPath()), StandardCharsets.UTF_8)) {
+			final JsonReader reader = new JsonReader(in);
+			reader.beginArray();
+			while (reader.hasNext() && failure.get() == null) {
+				final List<JsonObject> batch = new ArrayList<>(batchSize);
+				while (reader.hasNext() && batch.size() < batchSize) {
+					batch.add(parser.parse(reader).getAsJsonObject());
+				}
+				permits.acquire();
+				batches.add(load(async, batch, result).whenComplete((ignored, e) -> {
+					if (e != null) failure.compareAndSet(null, e);
+					permits.release();
+				}));
+			}
+		} catch (JsonParseException | IllegalStateException e) {
+			throw new IOException("Invalid documents in " + file + ", package again", e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Loading documents interrupted");
+		}
+		try {
+			CompletableFuture.allOf(batches.toArray(new CompletableFuture<?>[0])).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Loading documents interrupted");
+		} catch (ExecutionException e) {
+			// Reported below
+		}
+		if (failure.get() != null) {
+			throw toIOException(failure.get());
+		}
+		return result;
+	}
+
+	private CompletableFuture<Void> load(final CouchDbAsyncClient async, final List<JsonObject> batch, final Result result) {
+		final JsonArray keys = new JsonArray();
+		final Map<String, String> md5s = new HashMap<>();
+		try {
+			for (JsonObject document : batch) {
+				keys.add(document.get("_id"));
+				md5s.put(document.get("_id").getAsString(), md5(document.toString().getBytes(StandardCharsets.UTF_8)));
+			}
+		} catch (IOException e) {
+			final CompletableFuture<Void> failed = new CompletableFuture<>();
+			failed.completeExceptionally(e);
+			return failed;
+		}
+		final JsonObject lookup = new JsonObject();
+		lookup.add("keys", keys);
+		return async.post("_all_docs", getEntity(lookup)).thenCompose(response -> {
+			if (response.getStatus() != 200 || response.asJsonObject() == null) {
+				throw new CompletionException(new CouchDbException("Unable to look up documents", response));
+			}
+			// Missing documents come without a value, deleted ones are saved as new
+			final Map<String, String> deployed = new HashMap<>();
+			for (JsonElement element : response.asJsonObject().getAsJsonArray("rows")) {
+				final JsonObject row = element.getAsJsonObject();
+				final JsonElement value = row.get("value");
+				if (row.has("id") && value != null && value.isJsonObject() && !value.getAsJsonObject().has("deleted")) {
+					deployed.put(row.get("id").getAsString(), value.getAsJsonObject().get("rev").getAsString());
+				}
+			}
+			final JsonArray changed = new JsonArray();
+			for (JsonObject document : batch) {
+				final String id = document.get("_id").getAsString();
+				final String rev = deployed.get(id);
+				if (rev != null) {
+					if (result.isUnchanged(id, rev, md5s.get(id))) {
+						result.unchanged.incrementAndGet();
+						continue;
+					}
+					document.addProperty("_rev", rev);
+				}
+				changed.add(document);
+			}
+			if (changed.size() == 0) {
+				return CompletableFuture.<Void>completedFuture(null);
+			}
+			final JsonObject bulk = new JsonObject();
+			bulk.add("docs", changed);
+			return async.post("_bulk_docs", getEntity(bulk)).thenAccept(saved -> save(saved, changed.size(), md5s, result));
+		});
+	}
+
+	/*
+	 * _bulk_docs reports failures per document, a conflict means someone else updated it since the lookup.
+	 */
+	private void save(final CouchDbResponse response, final int count, final Map<String, String> md5s, final Result result) {
+		if ((response.getStatus() != 201 && response.getStatus() != 202) || response.asJsonArray() == null) {
+			throw new CompletionException(new CouchDbException("Unable to save documents", response));
+		}
+		final List<String> failed = new ArrayList<>();
+		for (JsonElement element : response.asJsonArray()) {
+			final JsonObject status = element.getAsJsonObject();
+			if (status.has("error")) {
+				failed.add(status.get("id").getAsString() + " (" + status.get("error").getAsString() + ")");
+			} else {
+				result.remember(status.get("id").getAsString(), status.get("rev").getAsString(), md5s.get(status.get("id").getAsString()));
+			}
+		}
+		result.saved.addAndGet(count - failed.size());
+		if (!failed.isEmpty()) {
+			throw new CompletionException(new IOException("Unable to save " + failed.size() + " documents: " + String.join(", ", failed.subList(0, Math.min(5, failed.size())))));
+		}
+	}
+
+	private static HttpEntity getEntity(final JsonObject json) {
+		return new ByteArrayEntity(json.toString().getBytes(StandardCharsets.UTF_8), ContentType.APPLICATION_JSON);
+	}
+
+	private static IOException toIOException(final Throwable e) {
+		Throwable cause = e;
+		while ((cause instanceof CompletionException || cause instanceof ExecutionException) && cause.getCause() != null) {
+			cause = cause.getCause();
+		}
+		return cause instanceof IOException ? (IOException) cause : new IOException(cause);
+	}
+
+	public static class Result {
+
+		private final AtomicLong saved = new AtomicLong();
+		private final AtomicLong unchanged = new AtomicLong();
+		private final JsonObject previous;
+		private final JsonObject history = new JsonObject();
+
+		private Result(final JsonObject previous) {
+			this.previous = previous == null ? new JsonObject() : previous;
+		}
+
+		public long getSaved() {
+			return saved.get();
+		}
+
+		public long getUnchanged() {
+			return unchanged.get();
+		}
+
+		/**
+		 * @return Revision and MD5 of the documents in the package, as far as they are known to be deployed
+		 */
+		public synchronized JsonObject getHistory() {
+			return history;
+		}
+
+		private synchronized boolean isUnchanged(final String id, final String rev, final String md5) {
+			final JsonObject entry = previous.getAsJsonObject(id);
+			if (entry == null || !rev.equals(entry.get("rev").getAsString()) || !md5.equals(entry.get("md5").getAsString())) {
+				return false;
+			}
+			history.add(id, entry);
+			return true;
+		}
+
+		private synchronized void remember(final String id, final String rev, final String md5) {
+			final JsonObject entry = new JsonObject();
+			entry.addProperty("rev", rev);
+			entry.addProperty("md5", md5);
+			history.add(id, entry);
+		}
+
+	}
+
+}
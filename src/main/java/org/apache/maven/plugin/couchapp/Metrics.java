@@ -0,0 +1,168 @@
+package org.apache.maven.plugin.couchapp;
+
+import static org.apache.maven.plugin.couchapp.CouchAppMojo.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+
+import com.google.gson.JsonObject;
+
+/**
+ * Timings, counters and request statistics of a single goal execution
+ *
+ * Phases running on several threads add up, so together they may exceed the elapsed time. Requests are grouped by
+ * method, with the bytes sent before compression, and the bytes received after decompression, both as they pass.
+ */
+public class Metrics {
+
+	private long started = System.nanoTime();
+	private final Map<String, Timer> phases = new LinkedHashMap<>();
+	private final Map<String, Long> counters = new LinkedHashMap<>();
+	private final Map<String, Timer> requests = new LinkedHashMap<>();
+
+	/**
+	 * Starts over, for mojos executed more than once
+	 */
+	public synchronized void reset() {
+		started = System.nanoTime();
+		phases.clear();
+		counters.clear();
+		requests.clear();
+	}
+
+	/**
+	 * @param start The System.nanoTime() the phase started at
+	 */
+	public synchronized void time(final String phase, final long start) {
+		get(phases, phase).add(System.nanoTime() - start, 0, 0);
+	}
+
+	public synchronized void count(final String counter, final long amount) {
+		counters.merge(counter, amount, Long::sum);
+	}
+
+	/**
+	 * @param start The System.nanoTime() the request was sent at
+	 * @param sent Request body size in bytes, or a negative value when unknown
+	 * @param received Response body size in bytes, or a negative value when unknown
+	 */
+	public synchronized void request(final String method, final long start, final long sent, final long received) {
+		get(requests, method).add(System.nanoTime() - start, Math.max(0, sent), Math.max(0, received));
+	}
+
+	public synchronized long getCount(final String counter) {
+		final Long result = counters.get(counter);
+		return result == null ? 0 : result;
+	}
+
+	public synchronized JsonObject toJson(final String goal) {
+		final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		final JsonObject result = new JsonObject();
+		result.addProperty("goal", goal);
+		result.addProperty("timestamp", format.format(new Date()));
+		result.addProperty("elapsed", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+		final JsonObject phases = new JsonObject();
+		for (Entry<String, Timer> entry : this.phases.entrySet()) {
+			phases.add(entry.getKey(), entry.getValue().toJson(false));
+		}
+		result.add("phases", phases);
+		final JsonObject counters = new JsonObject();
+		for (Entry<String, Long> entry : this.counters.entrySet()) {
+			counters.addProperty(entry.getKey(), entry.getValue());
+		}
+		result.add("counters", counters);
+		final JsonObject requests = new JsonObject();
+		for (Entry<String, Timer> entry : this.requests.entrySet()) {
+			requests.add(entry.getKey(), entry.getValue().toJson(true));
+		}
+		result.add("requests", requests);
+		return result;
+	}
+
+	/**
+	 * @return A single line, listing phases, counters and requests in the order they were first recorded
+	 */
+	public synchronized String getSummary() {
+		final StringBuilder result = new StringBuilder();
+		result.append(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started)).append(" ms");
+		for (Entry<String, Timer> entry : phases.entrySet()) {
+			result.append(", ").append(entry.getKey()).append(' ').append(entry.getValue().getMillis()).append(" ms");
+		}
+		for (Entry<String, Long> entry : counters.entrySet()) {
+			result.append(", ").append(entry.getKey()).append(' ').append(entry.getValue());
+		}
+		for (Entry<String, Timer> entry : requests.entrySet()) {
+			final Timer timer = entry.getValue();
+			result.append(", ").append(timer.count).append(' ').append(entry.getKey()).append(" in ").append(timer.getMillis()).append(" ms");
+			if (timer.sent > 0) {
+				result.append(" (").append(timer.sent).append(" bytes, ").append(timer.getThroughput()).append(" KB/s)");
+			}
+		}
+		return result.toString();
+	}
+
+	public void write(final File file, final String goal) throws IOException {
+		FileUtils.writeStringToFile(file, prettyPrint(toJson(goal)), StandardCharsets.UTF_8);
+	}
+
+	private static Timer get(final Map<String, Timer> timers, final String name) {
+		Timer result = timers.get(name);
+		if (result == null) {
+			result = new Timer();
+			timers.put(name, result);
+		}
+		return result;
+	}
+
+	private static class Timer {
+
+		private long count;
+		private long nanos;
+		private long max;
+		private long sent;
+		private long received;
+
+		private void add(final long nanos, final long sent, final long received) {
+			this.count++;
+			this.nanos += nanos;
+			this.max = Math.max(this.max, nanos);
+			this.sent += sent;
+			this.received += received;
+		}
+
+		private long getMillis() {
+			return TimeUnit.NANOSECONDS.toMillis(nanos);
+		}
+
+		private long getThroughput() {
+			return nanos == 0 ? 0 : (long) (sent / 1024.0 / (nanos / 1e9));
+		}
+
+		private JsonObject toJson(final boolean transfer) {
+			final JsonObject result = new JsonObject();
+			result.addProperty("count", count);
+			result.addProperty("ms", getMillis());
+			result.addProperty("maxMs", TimeUnit.NANOSECONDS.toMillis(max));
+			if (transfer) {
+				result.addProperty("avgMs", count == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(nanos / count));
+				result.addProperty("sent", sent);
+				result.addProperty("received", received);
+				result.addProperty("sentKBps", getThroughput());
+			}
+			return result;
+		}
+
+	}
+
+}
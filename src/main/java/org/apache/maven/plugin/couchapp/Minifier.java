@@ -0,0 +1,385 @@
+package org.apache.maven.plugin.couchapp;
+
+import static org.apache.maven.plugin.couchapp.CouchAppMojo.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.io.FileUtils;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * Conservative minification of JavaScript, CSS and HTML at package time
+ *
+ * Only comments and redundant whitespace are removed. Identifiers are never renamed, and line breaks in JavaScript
+ * are kept, so automatic semicolon insertion and function semantics are left intact. Minified files mirror the source
+ * tree in the minify folder, and are only minified again once the content hash of their source changes.
+ */
+public class Minifier {
+
+	private static final String INDEX = "index.json";
+
+	private final File folder;
+	private final Map<String, String> previous = new ConcurrentHashMap<>();
+	private final Map<String, String> current = new ConcurrentHashMap<>();
+
+	public Minifier(final File folder) {
+		this.folder = folder;
+	}
+
+	/**
+	 * @return Whether files of the given content type get minified
+	 */
+	public static boolean isMinifiable(final String name, final String contentType) {
+		if (name.toLowerCase(Locale.ROOT).contains(".min.")) return false;
+		return getType(contentType) != null;
+	}
+
+	/**
+	 * Loads the content hashes of the previous build
+	 */
+	public void load() throws IOException {
+		final File index = new File(folder, INDEX);
+		if (!index.isFile()) return;
+		try {
+			for (Entry<String, JsonElement> entry : readFileAsJsonObject(index).entrySet()) {
+				previous.put(entry.getKey(), entry.getValue().getAsString());
+			}
+		} catch (RuntimeException e) {
+			previous.clear();
+		}
+	}
+
+	/**
+	 * Writes the content hashes of the current build
+	 */
+	public void save() throws IOException {
+		final JsonObject index = new JsonObject();
+		for (Entry<String, String> entry : new TreeMap<>(current).entrySet()) {
+			index.addProperty(entry.getKey(), entry.getValue());
+		}
+		FileUtils.writeStringToFile(new File(folder, INDEX), index.toString(), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @param name The path of the file relative to the source folder
+	 * @return The minified copy of the file, reused when the source has the same content hash as last time
+	 */
+	public File minify(final File file, final String name, final String contentType) throws IOException {
+		final File result = getFile(name);
+		final byte[] bytes = FileUtils.readFileToByteArray(file);
+		final String md5 = md5(bytes);
+		if (result.isFile() && md5.equals(previous.get(name))) {
+			current.put(name, md5);
+			return result;
+		}
+		final String source = new String(bytes, StandardCharsets.UTF_8);
+		final String minified;
+		switch (getType(contentType)) {
+		case "js": minified = minifyJavascript(source); break;
+		case "css": minified = minifyCss(source); break;
+		default: minified = minifyHtml(source);
+		}
+		FileUtils.writeStringToFile(result, minified, StandardCharsets.UTF_8);
+		current.put(name, md5);
+		return result;
+	}
+
+	/**
+	 * @param name The path of the file relative to the source folder
+	 */
+	public File getFile(final String name) {
+		return new File(folder, name);
+	}
+
+	private static String getType(final String contentType) {
+		switch (contentType) {
+		case "application/javascript": return "js";
+		case "text/css": return "css";
+		case "text/html": return "html";
+		default: return null;
+		}
+	}
+
+	/*
+	 * A line break within a run of whitespace or comments is kept as a single line break, anything else becomes a
+	 * single space where two tokens would otherwise merge.
+	 */
+	public static String minifyJavascript(final String source) {
+		final StringBuilder result = new StringBuilder(source.length());
+		final int length = source.length();
+		boolean space = false;
+		boolean newline = false;
+		int i = 0;
+		while (i < length) {
+			final char c = source.charAt(i);
+			final char next = i + 1 < length ? source.charAt(i + 1) : 0;
+			if (Character.isWhitespace(c)) {
+				if (c == '\n' || c == '\r' || c == 0x2028 || c == 0x2029) newline = true;
+				else space = true;
+				i++;
+				continue;
+			}
+			if (c == '/' && next == '/') {
+				while (i < length && source.charAt(i) != '\n' && source.charAt(i) != '\r') i++;
+				continue;
+			}
+			if (c == '/' && next == '*' && (i + 2 >= length || source.charAt(i + 2) != '!')) {
+				final int end = source.indexOf("*/", i + 2);
+				final int stop = end < 0 ? length : end + 2;
+				if (source.substring(i, stop).indexOf('\n') >= 0) newline = true;
+				else space = true;
+				i = stop;
+				continue;
+			}
+			if (result.length() > 0) {
+				final char last = result.charAt(result.length() - 1);
+				if (newline) {
+					result.append('\n');
+				} else if (space && needsSpace(last, c)) {
+					result.append(' ');
+				}
+			}
+			space = false;
+			newline = false;
+			if (c == '"' || c == '\'' || c == '`') {
+				i = copyString(source, i, result);
+			} else if (c == '/' && next == '*') {
+				// Preserved /*! comments, usually licenses
+				final int end = source.indexOf("*/", i + 2);
+				final int stop = end < 0 ? length : end + 2;
+				result.append(source, i, stop);
+				i = stop;
+			} else if (c == '/' && isRegexAllowed(result, result.length() - 1)) {
+				i = copyRegex(source, i, result);
+			} else {
+				result.append(c);
+				i++;
+			}
+		}
+		return result.toString();
+	}
+
+	/*
+	 * Comments and whitespace around punctuation go, whitespace within selectors and values collapses to a space.
+	 */
+	public static String minifyCss(final String source) {
+		final StringBuilder result = new StringBuilder(source.length());
+		final int length = source.length();
+		boolean space = false;
+		int i = 0;
+		while (i < length) {
+			final char c = source.charAt(i);
+			if (Character.isWhitespace(c)) {
+				space = true;
+				i++;
+				continue;
+			}
+			if (c == '/' && i + 1 < length && source.charAt(i + 1) == '*') {
+				final int end = source.indexOf("*/", i + 2);
+				final int stop = end < 0 ? length : end + 2;
+				if (i + 2 < length && source.charAt(i + 2) == '!') {
+					result.append(source, i, stop);
+				} else {
+					space = true;
+				}
+				i = stop;
+				continue;
+			}
+			if (space && result.length() > 0 && "{};,>".indexOf(c) < 0 && "{};,>:".indexOf(result.charAt(result.length() - 1)) < 0) {
+				result.append(' ');
+			}
+			space = false;
+			if (c == '"' || c == '\'') {
+				i = copyString(source, i, result);
+				continue;
+			}
+			if (c == '}' && result.length() > 0 && result.charAt(result.length() - 1) == ';') {
+				result.setLength(result.length() - 1);
+			}
+			result.append(c);
+			i++;
+		}
+		return result.toString();
+	}
+
+	/*
+	 * Comments go, and whitespace runs collapse to a line break or a single space, which renders the same. The
+	 * contents of pre, textarea, script and style elements, and attribute values, are copied as they are.
+	 */
+	public static String minifyHtml(final String source) {
+		final StringBuilder result = new StringBuilder(source.length());
+		final int length = source.length();
+		boolean space = false;
+		boolean newline = false;
+		int i = 0;
+		while (i < length) {
+			final char c = source.charAt(i);
+			if (Character.isWhitespace(c)) {
+				if (c == '\n' || c == '\r') newline = true;
+				else space = true;
+				i++;
+				continue;
+			}
+			if (source.startsWith("<!--", i) && !source.startsWith("<!--[", i)) {
+				final int end = source.indexOf("-->", i + 4);
+				i = end < 0 ? length : end + 3;
+				continue;
+			}
+			if (newline) result.append('\n');
+			else if (space) result.append(' ');
+			space = false;
+			newline = false;
+			if (c != '<') {
+				result.append(c);
+				i++;
+				continue;
+			}
+			final int end = copyTag(source, i, result);
+			final String raw = getRawTextElement(source, i);
+			i = end;
+			if (raw != null) {
+				final int close = indexOfIgnoreCase(source, "</" + raw, i);
+				final int stop = close < 0 ? length : close;
+				result.append(source, i, stop);
+				i = stop;
+			}
+		}
+		return result.toString();
+	}
+
+	private static String getRawTextElement(final String source, final int start) {
+		for (String element : new String[] { "pre", "textarea", "script", "style" }) {
+			if (source.regionMatches(true, start, "<" + element, 0, element.length() + 1)) {
+				final int after = start + element.length() + 1;
+				if (after >= source.length()) return null;
+				final char c = source.charAt(after);
+				if (c == '>' || c == '/' || Character.isWhitespace(c)) return element;
+			}
+		}
+		return null;
+	}
+
+	private static int indexOfIgnoreCase(final String source, final String string, final int from) {
+		for (int i = from; i <= source.length() - string.length(); i++) {
+			if (source.regionMatches(true, i, string, 0, string.length())) return i;
+		}
+		return -1;
+	}
+
+	/*
+	 * Copies a tag up to and including its closing bracket, with quoted attribute values as they are.
+	 */
+	private static int copyTag(final String source, final int start, final StringBuilder result) {
+		int i = start;
+		while (i < source.length()) {
+			final char c = source.charAt(i);
+			if (c == '"' || c == '\'') {
+				final int end = source.indexOf(c, i + 1);
+				final int stop = end < 0 ? source.length() : end + 1;
+				result.append(source, i, stop);
+				i = stop;
+				continue;
+			}
+			result.append(c);
+			i++;
+			if (c == '>') break;
+		}
+		return i;
+	}
+
+	/*
+	 * Copies a string or template literal, including escapes and its closing quote.
+	 */
+	private static int copyString(final String source, final int start, final StringBuilder result) {
+		final char quote = source.charAt(start);
+		int i = start + 1;
+		result.append(quote);
+		while (i < source.length()) {
+			final char c = source.charAt(i++);
+			result.append(c);
+			if (c == '\\' && i < source.length()) {
+				result.append(source.charAt(i++));
+			} else if (c == quote) {
+				break;
+			}
+		}
+		return i;
+	}
+
+	/*
+	 * Copies a regular expression literal up to its closing slash, a slash within a character class does not end it.
+	 */
+	private static int copyRegex(final String source, final int start, final StringBuilder result) {
+		int i = start + 1;
+		boolean characterClass = false;
+		result.append('/');
+		while (i < source.length()) {
+			final char c = source.charAt(i++);
+			result.append(c);
+			if (c == '\\' && i < source.length()) {
+				result.append(source.charAt(i++));
+			} else if (c == '[') {
+				characterClass = true;
+			} else if (c == ']') {
+				characterClass = false;
+			} else if (c == '/' && !characterClass || c == '\n') {
+				break;
+			}
+		}
+		return i;
+	}
+
+	/*
+	 * A slash starts a regular expression unless it follows an operand, in which case it divides.
+	 */
+	private static boolean isRegexAllowed(final StringBuilder result, final int index) {
+		int i = index;
+		while (i >= 0 && Character.isWhitespace(result.charAt(i))) i--;
+		if (i < 0) return true;
+		final char last = result.charAt(i);
+		if (last == ')' || last == ']' || last == '"' || last == '\'' || last == '`') return false;
+		if (!isIdentifierPart(last)) return true;
+		final int end = i + 1;
+		while (i >= 0 && isIdentifierPart(result.charAt(i))) i--;
+		switch (result.substring(i + 1, end)) {
+		case "return":
+		case "typeof":
+		case "instanceof":
+		case "in":
+		case "of":
+		case "new":
+		case "delete":
+		case "void":
+		case "throw":
+		case "case":
+		case "do":
+		case "else":
+		case "yield":
+		case "await":
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	private static boolean needsSpace(final char last, final char next) {
+		if (isIdentifierPart(last) && isIdentifierPart(next)) return true;
+		if ((last == '+' || last == '-') && (next == last)) return true;
+		if (last == '/' && next == '/') return true;
+		return Character.isDigit(last) && next == '.';
+	}
+
+	private static boolean isIdentifierPart(final char c) {
+		return Character.isLetterOrDigit(c) || c == '_' || c == '$' || c == '\\' || c > 127;
+	}
+
+}
@@ -0,0 +1,135 @@
+package org.apache.maven.plugin.couchapp;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.entity.AbstractHttpEntity;
+
+/**
+ * A multipart/related document body, as accepted by CouchDB for documents with attachments
+ *
+ * The first part holds the JSON document, in which every attachment is a stub marked with follows: true. Each
+ * following part carries the raw bytes of one attachment, streamed from disk in the order of the stubs.
+ */
+public class MultipartRelatedEntity extends AbstractHttpEntity {
+
+	private static final byte[] CRLF = "\r\n".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] JSON = "Content-Type: application/json".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] END = "--".getBytes(StandardCharsets.US_ASCII);
+
+	private final byte[] boundary;
+	private final byte[] document;
+	private final List<File> attachments;
+
+	public MultipartRelatedEntity(final byte[] document, final List<File> attachments) {
+		final String boundary = UUID.randomUUID().toString().replace("-", "");
+		this.boundary = ("--" + boundary).getBytes(StandardCharsets.US_ASCII);
+		this.document = document;
+		this.attachments = attachments;
+		setContentType("multipart/related; boundary=\"" + boundary + "\"");
+	}
+
+	/*
+	 * The same bytes as writeTo, for consumers that pull, each attachment is only opened once reached.
+	 */
+	@Override
+	public InputStream getContent() throws IOException {
+		final Iterator<Object> parts = getParts().iterator();
+		return new SequenceInputStream(new Enumeration<InputStream>() {
+
+			@Override
+			public boolean hasMoreElements() {
+				return parts.hasNext();
+			}
+
+			@Override
+			public InputStream nextElement() {
+				final Object part = parts.next();
+				if (part instanceof byte[]) {
+					return new ByteArrayInputStream((byte[]) part);
+				}
+				try {
+					return new FileInputStream((File) part);
+				} catch (FileNotFoundException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+
+		});
+	}
+
+	@Override
+	public long getContentLength() {
+		long result = boundary.length + CRLF.length + JSON.length + CRLF.length + CRLF.length + document.length + CRLF.length;
+		for (File attachment : attachments) {
+			result += boundary.length + CRLF.length + CRLF.length + attachment.length() + CRLF.length;
+		}
+		return result + boundary.length + END.length;
+	}
+
+	@Override
+	public boolean isRepeatable() {
+		return true;
+	}
+
+	@Override
+	public boolean isStreaming() {
+		return false;
+	}
+
+	@Override
+	public void writeTo(final OutputStream out) throws IOException {
+		for (Object part : getParts()) {
+			if (part instanceof byte[]) {
+				out.write((byte[]) part);
+				continue;
+			}
+			final InputStream in = new FileInputStream((File) part);
+			try {
+				IOUtils.copyLarge(in, out);
+			} finally {
+				in.close();
+			}
+		}
+		out.flush();
+	}
+
+	/*
+	 * Byte arrays for the framing and the JSON part, files for the attachments.
+	 */
+	private List<Object> getParts() {
+		final List<Object> result = new ArrayList<>();
+		result.add(boundary);
+		result.add(CRLF);
+		result.add(JSON);
+		result.add(CRLF);
+		result.add(CRLF);
+		result.add(document);
+		result.add(CRLF);
+		for (File attachment : attachments) {
+			result.add(boundary);
+			result.add(CRLF);
+			result.add(CRLF);
+			result.add(attachment);
+			result.add(CRLF);
+		}
+		result.add(boundary);
+		result.add(END);
+		return result;
+	}
+
+}
@@ -0,0 +1,240 @@
+package org.apache.maven.plugin.couchapp;
+
+import static org.apache.maven.plugin.couchapp.CouchAppMojo.*;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.commons.io.FileUtils;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * On-disk build cache for the package goal
+ *
+ * Every file in the source tree is keyed on its relative path, size, modification time and content hash. A file
+ * that was only touched, such as by a fresh checkout, keeps its size but not its modification time, in which case the
+ * content hash decides. For attachments, the hash also names their already encoded base64 payload in the cache folder.
+ */
+public class PackageCache {
+
+	private static final String INDEX = "index.json";
+	private static final String PAYLOAD = ".b64";
+
+	private final File folder;
+	private final JsonObject configuration;
+
+	private final Map<String, FileState> previous = new TreeMap<>();
+	private final Map<String, FileState> current = new TreeMap<>();
+	private JsonObject previousConfiguration;
+	private FileState previousOutput;
+
+	/**
+	 * @param folder The cache folder
+	 * @param configuration Any settings that influence the packaged output
+	 */
+	public PackageCache(final File folder, final JsonObject configuration) {
+		this.folder = folder;
+		this.configuration = configuration;
+	}
+
+	/**
+	 * Loads the previous index, and records the current state of the source tree
+	 */
+	public void load(final File sourceFolder) throws IOException {
+		final File index = new File(folder, INDEX);
+		if (index.isFile()) {
+			try {
+				final JsonObject json = readFileAsJsonObject(index);
+				previousConfiguration = json.getAsJsonObject("configuration");
+				if (json.has("output")) previousOutput = FileState.fromJson(json.getAsJsonObject("output"));
+				for (Entry<String, JsonElement> entry : json.getAsJsonObject("files").entrySet()) {
+					previous.put(entry.getKey(), FileState.fromJson(entry.getValue().getAsJsonObject()));
+				}
+			} catch (RuntimeException e) {
+				previous.clear();
+				previousConfiguration = null;
+				previousOutput = null;
+			}
+			// Such as minified attachments, whose hashes no longer describe the files that get attached
+			if (!configuration.equals(previousConfiguration)) previous.clear();
+		}
+		scan(sourceFolder, sourceFolder);
+	}
+
+	/**
+	 * @return true when neither the source tree, the configuration nor the packaged output changed since the last build
+	 */
+	public boolean isUpToDate(final File output) {
+		if (previousOutput == null || !configuration.equals(previousConfiguration)) return false;
+		if (!previousOutput.matches(output)) return false;
+		if (!previous.keySet().equals(current.keySet())) return false;
+		for (Entry<String, FileState> entry : current.entrySet()) {
+			if (!entry.getValue().matches(previous.get(entry.getKey()))) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Makes sure the encoded payload of an attachment is present, encoding it only when it changed
+	 *
+	 * @param name The path of the file relative to the source folder
+	 * @return The MD5 signature of the attachment
+	 */
+	public String attach(final File file, final String name, final AttachmentEncoder encoder) throws IOException {
+		final FileState state = current.get(name);
+		final FileState cached = previous.get(name);
+		if (state != null && cached != null && cached.md5 != null && state.matches(cached) && getPayload(cached.md5).isFile()) {
+			state.md5 = cached.md5;
+			return state.md5;
+		}
+		final String result = encode(file, encoder);
+		if (state != null) state.md5 = result;
+		return result;
+	}
+
+	/**
+	 * @return The file holding the base64 encoded payload for the given signature
+	 */
+	public File getPayload(final String md5) {
+		return new File(folder, md5 + PAYLOAD);
+	}
+
+	/**
+	 * Writes the index for the current build, and removes payloads no longer referenced
+	 */
+	public void save(final File output) throws IOException {
+		final JsonObject files = new JsonObject();
+		for (Entry<String, FileState> entry : current.entrySet()) {
+			// Only hashed when new or changed, unchanged files carry over the previous hash
+			entry.getValue().matches(previous.get(entry.getKey()));
+			entry.getValue().getMd5();
+			files.add(entry.getKey(), entry.getValue().toJson());
+		}
+		final JsonObject index = new JsonObject();
+		index.add("configuration", configuration);
+		index.add("output", new FileState(output).toJson());
+		index.add("files", files);
+		FileUtils.writeStringToFile(new File(folder, INDEX), index.toString(), StandardCharsets.UTF_8);
+
+		final Set<String> referenced = new HashSet<>();
+		for (FileState state : current.values()) {
+			if (state.md5 != null) referenced.add(state.md5 + PAYLOAD);
+		}
+		for (File file : folder.listFiles()) {
+			if (file.getName().endsWith(PAYLOAD) && !referenced.contains(file.getName())) {
+				file.delete();
+			}
+		}
+	}
+
+	private String encode(final File file, final AttachmentEncoder encoder) throws IOException {
+		if (!folder.isDirectory()) folder.mkdirs();
+		final File temp = File.createTempFile("attachment", ".tmp", folder);
+		try {
+			final Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.US_ASCII));
+			final String result;
+			try {
+				result = encoder.encode(file, out);
+			} finally {
+				out.close();
+			}
+			final File payload = getPayload(result);
+			// Identical attachments may be encoded concurrently, in which case either payload will do
+			if (!payload.isFile() && !temp.renameTo(payload) && !payload.isFile()) {
+				throw new IOException("Unable to store payload for " + file);
+			}
+			return result;
+		} finally {
+			temp.delete();
+		}
+	}
+
+	private void scan(final File file, final File root) {
+		if (file.isDirectory()) {
+			for (File child : file.listFiles()) {
+				scan(child, root);
+			}
+		} else {
+			current.put(getRelativeFilename(file, root), new FileState(file));
+		}
+	}
+
+	private static class FileState {
+
+		private final File file;
+		private final long size;
+		private final long modified;
+		private String md5;
+
+		private FileState(final File file) {
+			this(file, file.length(), file.lastModified(), null);
+		}
+
+		private FileState(final File file, final long size, final long modified, final String md5) {
+			this.file = file;
+			this.size = size;
+			this.modified = modified;
+			this.md5 = md5;
+		}
+
+		/*
+		 * Hashed on first use, as most files keep their modification time between builds.
+		 */
+		private String getMd5() {
+			if (md5 == null && file != null) {
+				try {
+					md5 = md5(FileUtils.readFileToByteArray(file));
+				} catch (IOException e) {
+					return null;
+				}
+			}
+			return md5;
+		}
+
+		private boolean matches(final File file) {
+			return file.isFile() && file.length() == size && file.lastModified() == modified;
+		}
+
+		/**
+		 * @param state The state of the previous build
+		 */
+		private boolean matches(final FileState state) {
+			if (state == null || state.size != size) return false;
+			if (state.modified == modified) {
+				if (md5 == null) md5 = state.md5;
+				return true;
+			}
+			return state.md5 != null && state.md5.equals(getMd5());
+		}
+
+		private JsonObject toJson() {
+			final JsonObject result = new JsonObject();
+			result.addProperty("size", size);
+			result.addProperty("modified", modified);
+			if (md5 != null) result.addProperty("md5", md5);
+			return result;
+		}
+
+		private static FileState fromJson(final JsonObject json) {
+			return new FileState(
+					null,
+					json.get("size").getAsLong(),
+					json.get("modified").getAsLong(),
+					json.has("md5") ? json.get("md5").getAsString() : null);
+		}
+
+	}
+
+}
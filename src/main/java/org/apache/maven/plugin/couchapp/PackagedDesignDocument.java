@@ -0,0 +1,90 @@
+package org.apache.maven.plugin.couchapp;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+
+/**
+ * A packaged couchapp.json, read without its attachment data
+ *
+ * Attachment payloads are skipped while reading, so the result stays small whatever the size of the couchapp.
+ */
+public class PackagedDesignDocument {
+
+	private final File file;
+	private final JsonObject document = new JsonObject();
+	private final Map<String, JsonObject> attachments = new LinkedHashMap<>();
+
+	private PackagedDesignDocument(final File file) {
+		this.file = file;
+	}
+
+	public static PackagedDesignDocument read(final File file) throws IOException {
+		final PackagedDesignDocument result = new PackagedDesignDocument(file);
+		final JsonParser parser = new JsonParser();
+		final JsonReader reader = new JsonReader(new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)));
+		try {
+			reader.beginObject();
+			while (reader.hasNext()) {
+				final String name = reader.nextName();
+				if ("_attachments".equals(name)) {
+					reader.beginObject();
+					while (reader.hasNext()) {
+						final String attachment = reader.nextName();
+						final JsonObject properties = new JsonObject();
+						reader.beginObject();
+						while (reader.hasNext()) {
+							final String property = reader.nextName();
+							if ("data".equals(property)) {
+								reader.skipValue();
+							} else {
+								properties.add(property, parser.parse(reader));
+							}
+						}
+						reader.endObject();
+						result.attachments.put(attachment, properties);
+					}
+					reader.endObject();
+				} else {
+					result.document.add(name, parser.parse(reader));
+				}
+			}
+			reader.endObject();
+		} finally {
+			reader.close();
+		}
+		return result;
+	}
+
+	/**
+	 * @return The attachment properties, without their data, in packaged order
+	 */
+	public Map<String, JsonObject> getAttachments() {
+		return attachments;
+	}
+
+	/**
+	 * @return The design document, without its attachments
+	 */
+	public JsonObject getDocument() {
+		return document;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public String getId() {
+		return document.get("_id").getAsString();
+	}
+
+}
@@ -0,0 +1,324 @@
+package org.apache.maven.plugin.couchapp;
+
+import java.io.BufferedWriter;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Set;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.apache.commons.io.output.NullWriter;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+
+import com.google.gson.JsonParser;
+
+/**
+ * A packaged design document as inline JSON body, streamed from disk while it is sent
+ *
+ * The package is copied token by token on its way out, as written, without parsing its values: attachments already
+ * deployed become stubs, and packaging details of the others are left out, as CouchDB only takes content_type and data
+ * for inline attachments. Attachment data is copied in chunks, so memory use is bounded by the copy buffer, whatever the
+ * size of the attachments. The length is not known up front, so the body is sent chunked.
+ */
+public class PackagedDocumentEntity extends AbstractHttpEntity {
+
+	private final File file;
+	private final Set<String> stubs;
+
+	/**
+	 * @param stubs The attachments to send as stubs
+	 */
+	public PackagedDocumentEntity(final File file, final Set<String> stubs) {
+		this.file = file;
+		this.stubs = stubs;
+		setContentType(ContentType.APPLICATION_JSON.toString());
+		setChunked(true);
+	}
+
+	/*
+	 * For consumers that pull, such as the async client, writeTo() runs on a thread of its own into a pipe, so the
+	 * body is not buffered either. Closing the stream early ends that thread.
+	 */
+	@Override
+	public InputStream getContent() throws IOException {
+		final PipedContent result = new PipedContent();
+		final PipedOutputStream out = new PipedOutputStream(result);
+		final Thread writer = new Thread(() -> {
+			try {
+				writeTo(out);
+			} catch (IOException | RuntimeException e) {
+				// Before closing, so the reader sees it at the end of the stream
+				result.failure = e;
+			} finally {
+				IOUtils.closeQuietly(out);
+			}
+		}, "couchapp-entity");
+		writer.setDaemon(true);
+		writer.start();
+		return result;
+	}
+
+	@Override
+	public long getContentLength() {
+		return -1;
+	}
+
+	@Override
+	public boolean isRepeatable() {
+		return true;
+	}
+
+	@Override
+	public boolean isStreaming() {
+		return false;
+	}
+
+	@Override
+	public void writeTo(final OutputStream out) throws IOException {
+		try (Reader in = new InputStreamReader(Files.newInputStream(file.toPath()), StandardCharsets.UTF_8);
+				Writer writer = new BufferedWriter(new OutputStreamWriter(new CloseShieldOutputStream(out), StandardCharsets.UTF_8))) {
+			final RawJson json = new RawJson(in);
+			json.begin('{');
+			writer.write('{');
+			boolean first = true;
+			while (json.hasNext('}')) {
+				if (!first) writer.write(',');
+				first = false;
+				final String name = json.nextName();
+				writer.write(name);
+				writer.write(':');
+				if ("_attachments".equals(decode(name))) {
+					copyAttachments(json, writer);
+				} else {
+					json.copyValue(writer);
+				}
+			}
+			writer.write('}');
+		}
+		out.flush();
+	}
+
+	private void copyAttachments(final RawJson json, final Writer writer) throws IOException {
+		json.begin('{');
+		writer.write('{');
+		boolean first = true;
+		while (json.hasNext('}')) {
+			if (!first) writer.write(',');
+			first = false;
+			final String name = json.nextName();
+			writer.write(name);
+			writer.write(":{");
+			if (stubs.contains(decode(name))) {
+				json.skipValue();
+				writer.write("\"stub\":true");
+			} else {
+				json.begin('{');
+				boolean firstField = true;
+				while (json.hasNext('}')) {
+					final String field = json.nextName();
+					final String decoded = decode(field);
+					if ("content_type".equals(decoded) || "data".equals(decoded)) {
+						if (!firstField) writer.write(',');
+						firstField = false;
+						writer.write(field);
+						writer.write(':');
+						json.copyValue(writer);
+					} else {
+						json.skipValue();
+					}
+				}
+			}
+			writer.write('}');
+		}
+		writer.write('}');
+	}
+
+	/*
+	 * Names are short, and only need decoding to be compared.
+	 */
+	private static String decode(final String name) {
+		return new JsonParser().parse(name).getAsString();
+	}
+
+	/*
+	 * Reports a failure of the writing thread at the end of the stream, rather than a truncated body.
+	 */
+	private static class PipedContent extends PipedInputStream {
+
+		private volatile Exception failure;
+
+		PipedContent() {
+			super(8192);
+		}
+
+		@Override
+		public synchronized int read() throws IOException {
+			final int result = super.read();
+			if (result < 0) checkFailure();
+			return result;
+		}
+
+		@Override
+		public synchronized int read(final byte[] b, final int off, final int len) throws IOException {
+			final int result = super.read(b, off, len);
+			if (result < 0) checkFailure();
+			return result;
+		}
+
+		private void checkFailure() throws IOException {
+			final Exception e = failure;
+			if (e != null) throw e instanceof IOException ? (IOException) e : new IOException(e);
+		}
+
+	}
+
+	/*
+	 * Copies JSON values as written, with strings in chunks of the buffer, and numbers without a round trip through
+	 * double. Only as strict as a package written by this plugin requires.
+	 */
+	private static class RawJson {
+
+		private final Reader in;
+		private final char[] buffer = new char[8192];
+		private int position;
+		private int limit;
+
+		RawJson(final Reader in) {
+			this.in = in;
+		}
+
+		void begin(final char open) throws IOException {
+			if (peek() != open) throw unexpected();
+			position++;
+		}
+
+		/*
+		 * Consumes the separator before the next element, or the given closing bracket.
+		 */
+		boolean hasNext(final char close) throws IOException {
+			final char c = peek();
+			if (c == close) {
+				position++;
+				return false;
+			}
+			if (c == ',') position++;
+			return true;
+		}
+
+		/**
+		 * @return The raw name, quotes and escapes included
+		 */
+		String nextName() throws IOException {
+			final StringWriter result = new StringWriter();
+			copyString(result);
+			begin(':');
+			return result.toString();
+		}
+
+		void skipValue() throws IOException {
+			copyValue(NullWriter.NULL_WRITER);
+		}
+
+		void copyValue(final Writer out) throws IOException {
+			switch (peek()) {
+			case '{':
+				begin('{');
+				out.write('{');
+				for (boolean first = true; hasNext('}'); first = false) {
+					if (!first) out.write(',');
+					out.write(nextName());
+					out.write(':');
+					copyValue(out);
+				}
+				out.write('}');
+				break;
+			case '[':
+				begin('[');
+				out.write('[');
+				for (boolean first = true; hasNext(']'); first = false) {
+					if (!first) out.write(',');
+					copyValue(out);
+				}
+				out.write(']');
+				break;
+			case '"':
+				copyString(out);
+				break;
+			default:
+				copyLiteral(out);
+			}
+		}
+
+		private void copyString(final Writer out) throws IOException {
+			begin('"');
+			out.write('"');
+			while (true) {
+				if (position == limit && !fill()) throw new EOFException("Unterminated string in package");
+				final int start = position;
+				while (position < limit && buffer[position] != '"' && buffer[position] != '\\') position++;
+				out.write(buffer, start, position - start);
+				if (position == limit) continue;
+				final char c = buffer[position++];
+				out.write(c);
+				if (c == '"') return;
+				// The escaped character, hex digits of unicode escapes follow as plain characters
+				if (position == limit && !fill()) throw new EOFException("Unterminated string in package");
+				out.write(buffer[position++]);
+			}
+		}
+
+		/*
+		 * Numbers, true, false and null.
+		 */
+		private void copyLiteral(final Writer out) throws IOException {
+			boolean empty = true;
+			while (position < limit || fill()) {
+				final char c = buffer[position];
+				if (c == ',' || c == '}' || c == ']' || isWhitespace(c)) break;
+				out.write(c);
+				position++;
+				empty = false;
+			}
+			if (empty) throw unexpected();
+		}
+
+		private char peek() throws IOException {
+			while (true) {
+				if (position == limit && !fill()) throw new EOFException("Unexpected end of package");
+				final char c = buffer[position];
+				if (!isWhitespace(c)) return c;
+				position++;
+			}
+		}
+
+		private boolean fill() throws IOException {
+			final int read = in.read(buffer);
+			position = 0;
+			limit = Math.max(0, read);
+			return read > 0;
+		}
+
+		private IOException unexpected() {
+			return new IOException("Unexpected " + (position < limit ? "'" + buffer[position] + "'" : "end") + " in package, package again");
+		}
+
+		private static boolean isWhitespace(final char c) {
+			return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+		}
+
+	}
+
+}
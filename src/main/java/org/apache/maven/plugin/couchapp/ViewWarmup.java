@@ -0,0 +1,152 @@
+package org.apache.maven.plugin.couchapp;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.maven.plugin.logging.Log;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * Builds the view index of a design document right after it was deployed, instead of on the first query
+ *
+ * All views of a design document share a single index, so querying one of them builds the index for all of them. The
+ * query is sent without blocking, and while CouchDB works on it, _active_tasks is polled to report progress and an
+ * estimate of the time left. Polling _active_tasks requires admin rights, without them only completion is reported.
+ */
+public class ViewWarmup {
+
+	private final CouchDbClient client;
+	private final Log log;
+	private final long interval;
+
+	/**
+	 * @param interval Milliseconds between progress reports
+	 */
+	public ViewWarmup(final CouchDbClient client, final Log log, final long interval) {
+		this.client = client;
+		this.log = log;
+		this.interval = Math.max(1, interval);
+	}
+
+	/**
+	 * @param views The views section of the design document, or null
+	 * @param timeout Milliseconds to wait for the index at most
+	 * @return true when the index is built, false when the timeout expired first
+	 */
+	public boolean await(final String designDocumentId, final JsonObject views, final long timeout) throws IOException {
+		if (views == null || views.entrySet().isEmpty()) return true;
+		final String view = views.entrySet().iterator().next().getKey();
+		final String path = designDocumentId + "/_view/" + view + "?limit=0";
+		final long start = System.currentTimeMillis();
+		final long deadline = start + timeout;
+		final CouchDbAsyncClient async = client.async();
+		final Progress progress = new Progress();
+		log.info(client.getCouchDb() + ": Building the index of " + designDocumentId + " (" + views.entrySet().size() + " views)");
+		CompletableFuture<CouchDbResponse> query = async.get(path);
+		while (true) {
+			try {
+				final CouchDbResponse response = query.get(Math.max(1, Math.min(interval, deadline - System.currentTimeMillis())), TimeUnit.MILLISECONDS);
+				if (response.getStatus() != 200) {
+					throw new CouchDbException("Unable to query view " + view, response);
+				}
+				log.info(client.getCouchDb() + ": Index of " + designDocumentId + " built in " + (System.currentTimeMillis() - start) + " ms");
+				return true;
+			} catch (TimeoutException e) {
+				// Still building
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Warm-up interrupted");
+			} catch (ExecutionException e) {
+				// Builds outlasting the socket timeout are simply asked for again
+				if (!(e.getCause() instanceof SocketTimeoutException)) {
+					throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+				}
+				if (System.currentTimeMillis() < deadline) query = async.get(path);
+			}
+			if (System.currentTimeMillis() >= deadline) {
+				log.warn(client.getCouchDb() + ": Index of " + designDocumentId + " not built after " + timeout + " ms" + progress.getSummary());
+				return false;
+			}
+			report(designDocumentId, progress);
+		}
+	}
+
+	/*
+	 * Clustered databases report a task per shard, which add up.
+	 */
+	private void report(final String designDocumentId, final Progress progress) throws IOException {
+		if (progress.unavailable) return;
+		final CouchDbResponse response = client.get("/_active_tasks");
+		final JsonArray tasks = response.getStatus() == 200 ? response.asJsonArray() : null;
+		if (tasks == null) {
+			log.info(client.getCouchDb() + ": Indexing progress is not available (" + response.getStatus() + " " + response.getReason() + ")");
+			progress.unavailable = true;
+			return;
+		}
+		long done = 0;
+		long total = 0;
+		for (JsonElement element : tasks) {
+			final JsonObject task = element.getAsJsonObject();
+			if (!"indexer".equals(getString(task, "type")) || !designDocumentId.equals(getString(task, "design_document"))) continue;
+			if (!isDatabase(getString(task, "database"))) continue;
+			done += task.has("changes_done") ? task.get("changes_done").getAsLong() : 0;
+			total += task.has("total_changes") ? task.get("total_changes").getAsLong() : 0;
+		}
+		if (total > 0) {
+			progress.update(done, total);
+			log.info(client.getCouchDb() + ": Indexing " + designDocumentId + progress.getSummary());
+		}
+	}
+
+	/*
+	 * CouchDB 1.x names the database, 2.x and later name the shard, as in shards/00000000-1fffffff/db.1234567890.
+	 */
+	private boolean isDatabase(final String database) {
+		if (database == null) return false;
+		final String name = client.getDatabase();
+		return database.equals(name) || database.startsWith("shards/") && database.substring(database.lastIndexOf('/') + 1).startsWith(name + ".");
+	}
+
+	private static String getString(final JsonObject json, final String name) {
+		final JsonElement result = json.get(name);
+		return result == null || !result.isJsonPrimitive() ? null : result.getAsString();
+	}
+
+	private static class Progress {
+
+		private boolean unavailable;
+		private long firstTime;
+		private long firstDone = -1;
+		private long done;
+		private long total;
+		private long eta = -1;
+
+		private void update(final long done, final long total) {
+			final long now = System.currentTimeMillis();
+			if (firstDone < 0) {
+				firstTime = now;
+				firstDone = done;
+			} else if (done > firstDone && now > firstTime) {
+				final double rate = (done - firstDone) / (double) (now - firstTime);
+				eta = (long) ((total - done) / rate);
+			}
+			this.done = done;
+			this.total = total;
+		}
+
+		private String getSummary() {
+			if (total == 0) return "";
+			return ": " + (done * 100 / total) + "% (" + done + " of " + total + " changes)" + (eta < 0 ? "" : ", about " + TimeUnit.MILLISECONDS.toSeconds(eta) + " s left");
+		}
+
+	}
+
+}
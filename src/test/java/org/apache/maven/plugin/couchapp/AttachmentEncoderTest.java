@@ -0,0 +1,30 @@
+package org.apache.maven.plugin.couchapp;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+public class AttachmentEncoderTest {
+
+	@Test
+	public void testEncode() throws IOException {
+		final AttachmentEncoder encoder = new AttachmentEncoder();
+		final Random random = new Random(42);
+		final File file = new File("target/generated-test-resources/attachment.bin");
+		for (int length : new int[] { 0, 1, 2, 3, 4, 49151, 49152, 49153, 100000 }) {
+			final byte[] data = new byte[length];
+			random.nextBytes(data);
+			FileUtils.writeByteArrayToFile(file, data);
+			final StringWriter out = new StringWriter();
+			assertEquals(CouchAppMojo.md5(data), encoder.encode(file, out));
+			assertEquals(CouchAppMojo.base64encode(data), out.toString());
+		}
+	}
+
+}
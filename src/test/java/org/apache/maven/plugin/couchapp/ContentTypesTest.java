@@ -0,0 +1,35 @@
+package org.apache.maven.plugin.couchapp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class ContentTypesTest {
+
+	@Test
+	public void testContentTypes() {
+		final Map<String, String> overrides = new HashMap<>();
+		overrides.put(".tpl", "text/html");
+		overrides.put("ICO", "image/vnd.microsoft.icon");
+		final ContentTypes types = new ContentTypes(overrides);
+		assertEquals("text/html", types.get("index.HTML"));
+		assertEquals("application/javascript", types.get("js/app.min.js"));
+		assertEquals("text/html", types.get("templates/page.tpl"));
+		assertEquals("image/vnd.microsoft.icon", types.get("favicon.ico"));
+		assertEquals(ContentTypes.DEFAULT, types.get("LICENSE"));
+		assertEquals(ContentTypes.DEFAULT, types.get("data.unknown"));
+
+		assertTrue(ContentTypes.isCompressible("text/css"));
+		assertTrue(ContentTypes.isCompressible("application/json; charset=utf-8"));
+		assertTrue(ContentTypes.isCompressible("image/svg+xml"));
+		assertFalse(ContentTypes.isCompressible("image/png"));
+		assertFalse(ContentTypes.isCompressible("font/woff2"));
+		assertFalse(ContentTypes.isCompressible(ContentTypes.DEFAULT));
+	}
+
+}
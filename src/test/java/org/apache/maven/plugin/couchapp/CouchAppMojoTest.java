@@ -1,9 +1,31 @@
 package org.apache.maven.plugin.couchapp;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
 import org.junit.Test;
 
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
 public class CouchAppMojoTest {
 
 	@Test
@@ -14,4 +36,177 @@ public class CouchAppMojoTest {
 		packager.execute();
 	}
 
+	@Test
+	public void testCache() throws MojoExecutionException, MojoFailureException, IOException {
+		final File target = new File("target/generated-test-cache");
+		FileUtils.deleteQuietly(target);
+		final CouchAppPackageMojo packager = new CouchAppPackageMojo();
+		packager.setSource("src/test/resources");
+		packager.setTarget(target.toString());
+		packager.setCache(true);
+		packager.execute();
+		final File designDocument = new File(target, "couchapp.json");
+		final String packaged = CouchAppMojo.readFileAsString(designDocument);
+		final long modified = designDocument.lastModified();
+		packager.execute();
+		assertEquals(modified, designDocument.lastModified());
+
+		assertTrue(new File(target, "couchapp-cache/index.json").delete());
+		packager.execute();
+		assertEquals(packaged, CouchAppMojo.readFileAsString(designDocument));
+	}
+
+	@Test
+	public void testCacheAfterConfigurationChange() throws MojoExecutionException, MojoFailureException, IOException {
+		final File target = new File("target/generated-test-cache-configuration");
+		FileUtils.deleteQuietly(target);
+		final CouchAppPackageMojo packager = new CouchAppPackageMojo();
+		packager.setSource("src/test/resources");
+		packager.setTarget(target.toString());
+		packager.setCache(true);
+		packager.execute();
+		packager.setMinify(true);
+		packager.execute();
+		final JsonObject attachment = CouchAppMojo.readFileAsJsonObject(new File(target, "couchapp.json")).getAsJsonObject("_attachments").getAsJsonObject("index.html");
+		assertArrayEquals(
+				FileUtils.readFileToByteArray(new File(target, "couchapp-minify/_attachments/index.html")),
+				Base64.getDecoder().decode(attachment.get("data").getAsString()));
+
+		// The same mojo again, without minification
+		packager.setMinify(false);
+		packager.execute();
+		assertEquals(
+				CouchAppMojo.readFileAsString(new File("src/test/resources/views/bar/map.js")),
+				CouchAppMojo.readFileAsJsonObject(new File(target, "couchapp.json")).getAsJsonObject("views").getAsJsonObject("bar").get("map").getAsString());
+	}
+
+	@Test
+	public void testCacheComparesTouchedFiles() throws MojoExecutionException, MojoFailureException, IOException {
+		final File source = new File("target/generated-test-cache-touched-source");
+		final File target = new File("target/generated-test-cache-touched");
+		FileUtils.deleteQuietly(source);
+		FileUtils.deleteQuietly(target);
+		FileUtils.copyDirectory(new File("src/test/resources"), source);
+		final CouchAppPackageMojo packager = new CouchAppPackageMojo();
+		packager.setSource(source.toString());
+		packager.setTarget(target.toString());
+		packager.setCache(true);
+		packager.execute();
+		final File designDocument = new File(target, "couchapp.json");
+		final long modified = designDocument.lastModified();
+
+		// Same size and contents, only the modification time differs
+		final File index = new File(source, "_attachments/index.html");
+		final File map = new File(source, "views/bar/map.js");
+		assertTrue(index.setLastModified(index.lastModified() + 60000));
+		assertTrue(map.setLastModified(map.lastModified() + 60000));
+		packager.execute();
+		assertEquals(modified, designDocument.lastModified());
+
+		// Same size, other contents
+		final String contents = CouchAppMojo.readFileAsString(map);
+		FileUtils.writeStringToFile(map, contents.replace("emit", "EMIT"), StandardCharsets.UTF_8);
+		assertTrue(map.setLastModified(map.lastModified() + 120000));
+		packager.execute();
+		assertTrue(CouchAppMojo.readFileAsString(designDocument).contains("EMIT"));
+	}
+
+	@Test
+	public void testSortedByName() throws MojoExecutionException, MojoFailureException, IOException {
+		final File source = new File("target/generated-test-sorted-source");
+		final File target = new File("target/generated-test-sorted");
+		FileUtils.deleteQuietly(source);
+		FileUtils.deleteQuietly(target);
+		FileUtils.copyDirectory(new File("src/test/resources"), source);
+		for (String name : new String[] { "views/zeta/map.js", "views/alpha/map.js", "lists/zeta.js", "lists/alpha.js", "_attachments/zeta.txt", "_attachments/alpha.txt" }) {
+			FileUtils.writeStringToFile(new File(source, name), "function(doc) {}", StandardCharsets.UTF_8);
+		}
+		final CouchAppPackageMojo packager = new CouchAppPackageMojo();
+		packager.setSource(source.toString());
+		packager.setTarget(target.toString());
+		packager.setParallelism(4);
+		packager.execute();
+		final JsonObject document = CouchAppMojo.readFileAsJsonObject(new File(target, "couchapp.json"));
+		for (String section : new String[] { "views", "lists", "_attachments" }) {
+			final List<String> names = new ArrayList<>();
+			for (Entry<String, JsonElement> entry : document.getAsJsonObject(section).entrySet()) {
+				names.add(entry.getKey());
+			}
+			final List<String> sorted = new ArrayList<>(names);
+			Collections.sort(sorted);
+			assertEquals(sorted, names);
+		}
+	}
+
+	@Test
+	public void testParallel() throws MojoExecutionException, MojoFailureException, IOException {
+		final CouchAppPackageMojo serial = new CouchAppPackageMojo();
+		serial.setSource("src/test/resources");
+		serial.setTarget("target/generated-test-serial");
+		serial.execute();
+
+		FileUtils.deleteQuietly(new File("target/generated-test-parallel"));
+		final CouchAppPackageMojo parallel = new CouchAppPackageMojo();
+		parallel.setSource("src/test/resources");
+		parallel.setTarget("target/generated-test-parallel");
+		parallel.setParallelism(4);
+		parallel.execute();
+
+		assertEquals(
+				CouchAppMojo.readFileAsString(new File("target/generated-test-serial/couchapp.json")),
+				CouchAppMojo.readFileAsString(new File("target/generated-test-parallel/couchapp.json")));
+		assertFalse(new File("target/generated-test-parallel/couchapp-staging").exists());
+
+		// The same mojo again, serially and without the pool or staging folder of the previous run
+		parallel.setParallelism(1);
+		parallel.setCache(false);
+		parallel.execute();
+		assertEquals(
+				CouchAppMojo.readFileAsString(new File("target/generated-test-serial/couchapp.json")),
+				CouchAppMojo.readFileAsString(new File("target/generated-test-parallel/couchapp.json")));
+	}
+
+	@Test
+	public void testGzip() throws MojoExecutionException, MojoFailureException, IOException {
+		final File target = new File("target/generated-test-gzip");
+		FileUtils.deleteQuietly(target);
+		final CouchAppPackageMojo packager = new CouchAppPackageMojo();
+		packager.setSource("src/test/resources");
+		packager.setTarget(target.toString());
+		packager.execute();
+		assertFalse(CouchAppMojo.readFileAsString(new File(target, "couchapp.json")).contains("\"encoding\""));
+
+		packager.setGzip(true);
+		packager.execute();
+		final JsonObject attachment = CouchAppMojo.readFileAsJsonObject(new File(target, "couchapp.json")).getAsJsonObject("_attachments").getAsJsonObject("index.html");
+		assertEquals("text/html", attachment.get("content_type").getAsString());
+		assertEquals("gzip", attachment.get("encoding").getAsString());
+		final File compressed = new File(target, "couchapp-gzip/index.html.gz");
+		assertEquals(compressed.length(), attachment.get("encoded_length").getAsLong());
+		try (InputStream in = new GZIPInputStream(new FileInputStream(compressed))) {
+			assertArrayEquals(FileUtils.readFileToByteArray(new File("src/test/resources/_attachments/index.html")), IOUtils.toByteArray(in));
+		}
+
+		packager.setGzip(false);
+		packager.execute();
+		assertFalse(CouchAppMojo.readFileAsString(new File(target, "couchapp.json")).contains("\"encoding\""));
+	}
+
+	@Test
+	public void testMinify() throws MojoExecutionException, MojoFailureException, IOException {
+		final File target = new File("target/generated-test-minify-package");
+		FileUtils.deleteQuietly(target);
+		final CouchAppPackageMojo packager = new CouchAppPackageMojo();
+		packager.setSource("src/test/resources");
+		packager.setTarget(target.toString());
+		packager.setMinify(true);
+		packager.execute();
+		final JsonObject designDocument = CouchAppMojo.readFileAsJsonObject(new File(target, "couchapp.json"));
+		assertEquals("function(doc){emit(doc._id,doc._rev)}", designDocument.getAsJsonObject("views").getAsJsonObject("bar").get("map").getAsString());
+		assertTrue(designDocument.getAsJsonObject("_attachments").getAsJsonObject("index.html").get("minified").getAsBoolean());
+		final File minified = new File(target, "couchapp-minify/_attachments/index.html");
+		assertTrue(minified.length() < new File("src/test/resources/_attachments/index.html").length());
+		assertTrue(new File(target, "couchapp-minify/index.json").isFile());
+	}
+
 }
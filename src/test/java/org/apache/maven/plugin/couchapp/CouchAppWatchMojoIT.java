@@ -0,0 +1,193 @@
+package org.apache.maven.plugin.couchapp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.maven.plugin.MojoFailureException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.gson.JsonObject;
+
+public class CouchAppWatchMojoIT {
+
+	private static final String SOURCE = "target/generated-test-watch-source";
+	private static final String TARGET = "target/generated-test-watch";
+	private static final String ID = "_design/demo";
+	private static final long TIMEOUT = 10000;
+
+	private FakeCouchDb couchDb;
+	private CouchAppWatchMojo mojo;
+	private Thread thread;
+
+	@Before
+	public void setUp() throws Exception {
+		couchDb = new FakeCouchDb().start();
+		FileUtils.deleteQuietly(new File(SOURCE));
+		FileUtils.deleteQuietly(new File(TARGET));
+		FileUtils.copyDirectory(new File("src/test/resources"), new File(SOURCE));
+		FileUtils.writeStringToFile(new File(SOURCE, ".couchapprc"), "{\"env\":{\"default\":{\"db\":\"" + couchDb.getUrl("watch") + "\"}}}", StandardCharsets.UTF_8);
+
+		start(new CouchAppWatchMojo());
+	}
+
+	private void start(final CouchAppWatchMojo mojo) throws Exception {
+		this.mojo = mojo;
+		mojo.setSource(SOURCE);
+		mojo.setTarget(TARGET);
+		mojo.setDebounce(100);
+		thread = new Thread(() -> {
+			try {
+				mojo.execute();
+			} catch (Exception e) {
+				throw new IllegalStateException(e);
+			}
+		});
+		thread.start();
+		// Deployed, then read back to patch from
+		await(() -> couchDb.getRequests().toString().matches(".*PUT /watch/_design/demo(\\?rev=\\S+)? 201, GET /watch/_design/demo 200]"));
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		mojo.stop();
+		thread.join(TIMEOUT);
+		couchDb.stop();
+	}
+
+	@Test
+	public void testAttachment() throws Exception {
+		couchDb.reset();
+		FileUtils.writeStringToFile(new File(SOURCE, "_attachments/index.html"), "<html>changed</html>", StandardCharsets.UTF_8);
+		await(() -> getAttachment("index.html").get("length").getAsLong() == 20 && !getCouchApp().has("digest"));
+		// The attachment, then the design document without the digest and its signature
+		assertEquals(2, couchDb.getRequests().size());
+		assertTrue(couchDb.getRequests().get(0).path.startsWith("/watch/_design/demo/index.html?rev=1-"));
+		assertEquals("PUT /watch/_design/demo", couchDb.getRequests().get(1).method + " " + couchDb.getRequests().get(1).path);
+		assertFalse(getCouchApp().getAsJsonObject("signatures").has("index.html"));
+		assertTrue(getCouchApp().getAsJsonObject("signatures").has("images/icon.ico"));
+
+		// Nothing left to invalidate for a new attachment
+		FileUtils.writeStringToFile(new File(SOURCE, "_attachments/about.html"), "<html>about</html>", StandardCharsets.UTF_8);
+		await(() -> getAttachment("about.html") != null);
+		assertEquals(3, couchDb.getRequests().size());
+		FileUtils.deleteQuietly(new File(SOURCE, "_attachments/images"));
+		await(() -> getAttachment("images/icon.ico") == null && !getCouchApp().getAsJsonObject("signatures").has("images/icon.ico"));
+		assertEquals(5, couchDb.getRequests().size());
+	}
+
+	@Test
+	public void testRevertThenDeploy() throws Exception {
+		final File index = new File(SOURCE, "_attachments/index.html");
+		final byte[] original = FileUtils.readFileToByteArray(index);
+		FileUtils.writeStringToFile(index, "<html>changed</html>", StandardCharsets.UTF_8);
+		await(() -> getAttachment("index.html").get("length").getAsLong() == 20 && !getCouchApp().has("digest"));
+		mojo.stop();
+		thread.join(TIMEOUT);
+
+		// The package in the target folder is still the one from before the change
+		FileUtils.writeByteArrayToFile(index, original);
+		couchDb.reset();
+		final CouchAppDeployMojo deployer = new CouchAppDeployMojo();
+		deployer.setSource(SOURCE);
+		deployer.setTarget(TARGET);
+		deployer.setDiff(true);
+		deployer.setTargets(Collections.singletonList(couchDb.getUrl("watch")));
+		deployer.execute();
+		assertEquals(1, couchDb.getRequestCount("PUT"));
+		assertEquals(FakeCouchDb.digest(original), getAttachment("index.html").get("digest").getAsString());
+		assertTrue(getCouchApp().has("digest"));
+	}
+
+	@Test
+	public void testFunction() throws Exception {
+		couchDb.reset();
+		final String revision = couchDb.getDocument("watch", ID).get("_rev").getAsString();
+		FileUtils.writeStringToFile(new File(SOURCE, "views/bar/map.js"), "function(doc) { emit(doc._id, 1); }", StandardCharsets.UTF_8);
+		await(() -> !revision.equals(couchDb.getDocument("watch", ID).get("_rev").getAsString()));
+		assertEquals(1, couchDb.getRequestCount("PUT"));
+		final JsonObject document = couchDb.getDocument("watch", ID);
+		assertEquals("function(doc) { emit(doc._id, 1); }", document.getAsJsonObject("views").getAsJsonObject("bar").get("map").getAsString());
+		assertEquals(2, document.getAsJsonObject("_attachments").entrySet().size());
+
+		FileUtils.deleteQuietly(new File(SOURCE, "lists/foo.js"));
+		await(() -> !couchDb.getDocument("watch", ID).getAsJsonObject("lists").has("foo"));
+		assertEquals(2, couchDb.getRequestCount("PUT"));
+	}
+
+	@Test
+	public void testMinifiedGzipped() throws Exception {
+		mojo.stop();
+		thread.join(TIMEOUT);
+		couchDb.reset();
+		final CouchAppWatchMojo watcher = new CouchAppWatchMojo();
+		watcher.setMinify(true);
+		watcher.setGzip(true);
+		start(watcher);
+		// Full deploys go multipart, with the gzipped attachments
+		assertTrue(couchDb.getRequests().get(couchDb.getRequests().size() - 2).contentType.startsWith("multipart/related"));
+
+		couchDb.reset();
+		final String html = "<html>\n" + String.join("", Collections.nCopies(50, "  <p>Hello    world</p>  <!-- comment -->\n")) + "</html>";
+		final int minified = Minifier.minifyHtml(html).getBytes(StandardCharsets.UTF_8).length;
+		FileUtils.writeStringToFile(new File(SOURCE, "_attachments/index.html"), html, StandardCharsets.UTF_8);
+		await(() -> getAttachment("index.html").get("length").getAsLong() == minified);
+		assertEquals("gzip", couchDb.getRequests().get(0).contentEncoding);
+		assertTrue(couchDb.getRequests().get(0).bytes < minified);
+
+		final String map = "function(doc) {\n\t// Comment\n\temit(doc._id, 1);\n}";
+		FileUtils.writeStringToFile(new File(SOURCE, "views/bar/map.js"), map, StandardCharsets.UTF_8);
+		await(() -> Minifier.minifyJavascript(map).equals(couchDb.getDocument("watch", ID).getAsJsonObject("views").getAsJsonObject("bar").get("map").getAsString()));
+	}
+
+	@Test(expected = MojoFailureException.class)
+	public void testRejectsSources() throws Exception {
+		final CouchAppWatchMojo watcher = new CouchAppWatchMojo();
+		watcher.setSources(Collections.singletonList(SOURCE));
+		watcher.execute();
+	}
+
+	@Test
+	public void testRedeploy() throws Exception {
+		couchDb.reset();
+		FileUtils.writeStringToFile(new File(SOURCE, "language"), "coffeescript", StandardCharsets.UTF_8);
+		await(() -> "coffeescript".equals(couchDb.getDocument("watch", ID).get("language").getAsString()));
+		assertTrue(couchDb.getRequestCount("PUT") >= 1);
+	}
+
+	@Test
+	public void testIgnoresHiddenFiles() throws Exception {
+		couchDb.reset();
+		FileUtils.writeStringToFile(new File(SOURCE, "views/bar/.map.js.swp"), "swap", StandardCharsets.UTF_8);
+		FileUtils.writeStringToFile(new File(SOURCE, "_attachments/index.html~"), "backup", StandardCharsets.UTF_8);
+		Thread.sleep(500);
+		assertEquals(0, couchDb.getRequests().size());
+		assertNull(getAttachment("index.html~"));
+	}
+
+	private JsonObject getAttachment(final String name) {
+		return couchDb.getDocument("watch", ID).getAsJsonObject("_attachments").getAsJsonObject(name);
+	}
+
+	private JsonObject getCouchApp() {
+		return couchDb.getDocument("watch", ID).getAsJsonObject("couchapp");
+	}
+
+	private static void await(final Callable<Boolean> condition) throws Exception {
+		final long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (!condition.call()) {
+			if (System.currentTimeMillis() > deadline) throw new AssertionError("Timed out");
+			Thread.sleep(20);
+		}
+	}
+
+}
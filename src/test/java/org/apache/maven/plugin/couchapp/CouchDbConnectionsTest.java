@@ -0,0 +1,83 @@
+package org.apache.maven.plugin.couchapp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.maven.execution.AbstractExecutionListener;
+import org.apache.maven.execution.DefaultMavenExecutionRequest;
+import org.apache.maven.execution.DefaultMavenExecutionResult;
+import org.apache.maven.execution.ExecutionEvent;
+import org.apache.maven.execution.MavenSession;
+import org.apache.maven.project.MavenProject;
+import org.junit.After;
+import org.junit.Test;
+
+public class CouchDbConnectionsTest {
+
+	private static final String ENDPOINT = "http://127.0.0.1:5984";
+
+	@After
+	public void closeAll() {
+		CouchDbConnections.closeAll();
+	}
+
+	@Test
+	public void testReuse() {
+		final CouchDbSettings settings = new CouchDbSettings();
+		final CloseableHttpClient client = CouchDbConnections.get(ENDPOINT, settings);
+		assertSame(client, CouchDbConnections.get(ENDPOINT, new CouchDbSettings()));
+		// Timeouts are set per request, so they share the pool
+		final CouchDbSettings timeouts = new CouchDbSettings();
+		timeouts.setSocketTimeout(1);
+		timeouts.setConnectTimeout(1);
+		assertSame(client, CouchDbConnections.get(ENDPOINT, timeouts));
+		assertSame(CouchDbConnections.getAsync(ENDPOINT, settings), CouchDbConnections.getAsync(ENDPOINT, timeouts));
+
+		final CouchDbSettings larger = new CouchDbSettings();
+		larger.setMaxConnections(settings.getMaxConnections() * 2);
+		assertNotSame(client, CouchDbConnections.get(ENDPOINT, larger));
+		assertNotSame(client, CouchDbConnections.get("http://127.0.0.1:5985", settings));
+	}
+
+	@Test
+	public void testClosedAtSessionEnd() throws Exception {
+		final List<String> events = new ArrayList<>();
+		final MavenSession session = new MavenSession(null, new DefaultMavenExecutionRequest(), new DefaultMavenExecutionResult(), Collections.<MavenProject>emptyList());
+		session.getRequest().setExecutionListener(new AbstractExecutionListener() {
+			@Override
+			public void sessionStarted(final ExecutionEvent event) {
+				events.add("started");
+			}
+
+			@Override
+			public void sessionEnded(final ExecutionEvent event) {
+				events.add("ended");
+			}
+		});
+		new CouchDbLifecycleParticipant().afterSessionStart(session);
+		final CloseableHttpClient client = CouchDbConnections.get(ENDPOINT, new CouchDbSettings());
+
+		session.getRequest().getExecutionListener().sessionStarted(null);
+		assertSame(client, CouchDbConnections.get(ENDPOINT, new CouchDbSettings()));
+		session.getRequest().getExecutionListener().sessionEnded(null);
+		assertEquals("[started, ended]", events.toString());
+		// Closed, and a later session gets a fresh pool
+		try {
+			client.execute(new HttpGet(ENDPOINT));
+			fail("Expected the pool to be shut down");
+		} catch (IllegalStateException e) {
+			assertTrue(e.getMessage().contains("shut down"));
+		}
+		assertNotSame(client, CouchDbConnections.get(ENDPOINT, new CouchDbSettings()));
+	}
+
+}
@@ -0,0 +1,61 @@
+package org.apache.maven.plugin.couchapp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+public class MinifierTest {
+
+	@Test
+	public void testJavascript() {
+		assertEquals(
+				"function(doc){\nif(doc.type===\"a  // b\"){\nemit(doc._id,/\\/*[/]x/g.test(doc.p)?1:a/b/c);\n}\n}",
+				Minifier.minifyJavascript("function(doc) {\n\t// Comment\n\tif (doc.type === \"a  // b\") {\n\t\temit(doc._id, /\\/*[/]x/g.test(doc.p) ? 1 : a / b / c); /* done */\n\t}\n}\n"));
+		// Line breaks stay, so semicolon insertion still applies
+		assertEquals("var a=b\n(c)", Minifier.minifyJavascript("var  a  =  b\n\n(c)"));
+		assertEquals("a+ +b;c- -d;1 .toString();return/x/", Minifier.minifyJavascript("a + +b; c - -d; 1 .toString(); return /x/"));
+		assertEquals("/*! License */\nx", Minifier.minifyJavascript("/*! License */\n/* gone */\nx"));
+		assertEquals("s='it\\'s  //'", Minifier.minifyJavascript("s = 'it\\'s  //'"));
+	}
+
+	@Test
+	public void testCss() {
+		assertEquals(
+				"a>b,c{color:red;margin:0 auto}@media (min-width:10px){.x :hover{content:\"  ;  \"}}",
+				Minifier.minifyCss("/* header */\na > b,\nc {\n  color: red;\n  margin: 0  auto;\n}\n@media (min-width: 10px) {\n  .x :hover { content: \"  ;  \"; }\n}\n"));
+	}
+
+	@Test
+	public void testHtml() {
+		assertEquals(
+				"<html>\n<body class=\"a  b\">\n<p>Hello world</p>\n<pre>  keep\n\n  this</pre>\n<script>if (a  <  b) {}</script>\n<!--[if IE]>x<![endif]-->\n</body>\n</html>",
+				Minifier.minifyHtml("<html>\n  <body class=\"a  b\">\n    <!-- comment -->\n    <p>Hello    world</p>\n    <pre>  keep\n\n  this</pre>\n    <script>if (a  <  b) {}</script>\n    <!--[if IE]>x<![endif]-->\n  </body>\n</html>"));
+	}
+
+	@Test
+	public void testCache() throws IOException {
+		final File folder = new File("target/generated-test-minify");
+		FileUtils.deleteQuietly(folder);
+		final File source = new File(folder, "source.js");
+		FileUtils.writeStringToFile(source, "var a  =  1; // one", StandardCharsets.UTF_8);
+		final Minifier minifier = new Minifier(new File(folder, "cache"));
+		final File minified = minifier.minify(source, "views/a/map.js", "application/javascript");
+		assertEquals("var a=1;", CouchAppMojo.readFileAsString(minified));
+		minifier.save();
+
+		// Unchanged sources are not minified again
+		assertTrue(minified.setLastModified(0));
+		final Minifier next = new Minifier(new File(folder, "cache"));
+		next.load();
+		assertEquals(0, next.minify(source, "views/a/map.js", "application/javascript").lastModified());
+		FileUtils.writeStringToFile(source, "var b  =  2;", StandardCharsets.UTF_8);
+		assertEquals("var b=2;", CouchAppMojo.readFileAsString(next.minify(source, "views/a/map.js", "application/javascript")));
+	}
+
+}
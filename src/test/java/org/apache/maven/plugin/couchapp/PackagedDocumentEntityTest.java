@@ -0,0 +1,70 @@
+package org.apache.maven.plugin.couchapp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+public class PackagedDocumentEntityTest {
+
+	@Test
+	public void testRewrite() throws IOException {
+		final File file = new File("target/generated-test-entity/couchapp.json");
+		FileUtils.writeStringToFile(file, "{\"_id\":\"_design/demo\",\"n\":1.50,\"s\":\"caf\u00e9 \\u2028\",\"a\":[true,null,{}],"
+				+ "\"_attachments\":{\"a.html\":{\"content_type\":\"text/html\",\"minified\":true,\"encoding\":\"gzip\",\"encoded_length\":3,\"data\":\"YQ==\"},"
+				+ "\"b.png\":{\"content_type\":\"image/png\",\"data\":\"Yg==\"}},\"couchapp\":{\"digest\":\"x\"}}", StandardCharsets.UTF_8);
+		final PackagedDocumentEntity entity = new PackagedDocumentEntity(file, Collections.singleton("b.png"));
+		assertTrue(entity.isChunked());
+		assertTrue(entity.isRepeatable());
+		final String expected = "{\"_id\":\"_design/demo\",\"n\":1.50,\"s\":\"caf\u00e9 \\u2028\",\"a\":[true,null,{}],"
+				+ "\"_attachments\":{\"a.html\":{\"content_type\":\"text/html\",\"data\":\"YQ==\"},\"b.png\":{\"stub\":true}},\"couchapp\":{\"digest\":\"x\"}}";
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		entity.writeTo(out);
+		assertEquals(expected, new String(out.toByteArray(), StandardCharsets.UTF_8));
+
+		// Whitespace is dropped, and data longer than the copy buffer comes through whole
+		final String data = String.join("", Collections.nCopies(5000, "QUJD"));
+		FileUtils.writeStringToFile(file, "{ \"_id\" : \"_design/demo\",\n \"_attachments\" : {\n  \"a.txt\" : { \"data\" : \"" + data + "\", \"content_type\" : \"text/plain\" }\n }\n}\n", StandardCharsets.UTF_8);
+		out.reset();
+		entity.writeTo(out);
+		assertEquals("{\"_id\":\"_design/demo\",\"_attachments\":{\"a.txt\":{\"data\":\"" + data + "\",\"content_type\":\"text/plain\"}}}", new String(out.toByteArray(), StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void testContentMatchesWriteTo() throws IOException {
+		final File file = new File("target/generated-test-entity/content.json");
+		final String data = String.join("", Collections.nCopies(20000, "QUJD"));
+		FileUtils.writeStringToFile(file, "{\"_id\":\"_design/demo\",\"n\":1.50,\"_attachments\":{\"a.txt\":{\"content_type\":\"text/plain\",\"encoding\":\"gzip\",\"data\":\"" + data + "\"},"
+				+ "\"b.png\":{\"content_type\":\"image/png\",\"data\":\"Yg==\"}}}", StandardCharsets.UTF_8);
+		final PackagedDocumentEntity entity = new PackagedDocumentEntity(file, Collections.singleton("b.png"));
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		entity.writeTo(out);
+		try (InputStream in = entity.getContent()) {
+			assertArrayEquals(out.toByteArray(), IOUtils.toByteArray(in));
+		}
+		// Repeatable, also when pulled
+		try (InputStream in = entity.getContent()) {
+			assertArrayEquals(out.toByteArray(), IOUtils.toByteArray(in));
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void testContentReportsFailure() throws IOException {
+		final File file = new File("target/generated-test-entity/broken.json");
+		FileUtils.writeStringToFile(file, "{\"_id\":\"_design/demo\",\"n\":", StandardCharsets.UTF_8);
+		try (InputStream in = new PackagedDocumentEntity(file, Collections.<String>emptySet()).getContent()) {
+			IOUtils.toByteArray(in);
+		}
+	}
+
+}